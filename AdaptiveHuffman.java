@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * Adaptive Huffman coding (the FGK algorithm). The coder and the decoder
+ * both start from a tree that holds only the NYT ("not yet transmitted")
+ * leaf, and both update their tree the same way after every symbol, so the
+ * code follows the text without being stored anywhere and the input is read
+ * only once.
+ *
+ * A symbol seen for the first time is sent as the code of the NYT leaf
+ * followed by the symbol in 9 bits; the NYT leaf then splits into a new NYT
+ * leaf and a leaf for the symbol. Symbol END (256), sent the same way, marks
+ * the end of the text.
+ *
+ * The tree keeps the sibling property: nodes are numbered so that weights
+ * never decrease with the number, and siblings are numbered next to each
+ * other. Here a node's number is its index in the arrays, and the root is
+ * the highest index.
+ */
+public class AdaptiveHuffman {
+
+	/**
+	 * Format byte following the "HF" magic number for adaptive files
+	 */
+	public static final char FORMAT_ADAPTIVE = 'A';
+
+	public static final int END = 256;
+
+	private static final int SYMBOLS = 257;
+	// every symbol and the NYT leaf, and the internal nodes above them
+	private static final int NODES = 2 * (SYMBOLS + 1) - 1;
+	private static final int ROOT = NODES - 1;
+
+	private long[] weight = new long[NODES];
+	private int[] parent = new int[NODES];
+	private int[] left = new int[NODES];
+	private int[] right = new int[NODES];
+	// symbol of a leaf, -1 for internal nodes and the NYT leaf
+	private int[] symbol = new int[NODES];
+	// node of each symbol, -1 for symbols not seen yet
+	private int[] leaf = new int[SYMBOLS];
+	private int nyt;
+	// nodes from a leaf up to the root, for writing its code
+	private int[] path = new int[NODES];
+
+	public AdaptiveHuffman() {
+		nyt = ROOT;
+		parent[ROOT] = -1;
+		left[ROOT] = -1;
+		right[ROOT] = -1;
+		symbol[ROOT] = -1;
+		Arrays.fill(leaf, -1);
+	}
+
+	/**
+	 * Write the code for symbol (0-255, or END) and update the tree.
+	 */
+	public void encode(int symbol, BitWriter out) {
+		Assert.notFalse(symbol >= 0 && symbol < SYMBOLS, "Invalid symbol " + symbol);
+		int node = leaf[symbol];
+		if (node < 0) {
+			writeCode(nyt, out);
+			out.writeBits(symbol, 9);
+		} else {
+			writeCode(node, out);
+		}
+		update(symbol);
+	}
+
+	/**
+	 * Read the code of the next symbol and update the tree.
+	 *
+	 * @return The symbol, 0-255, or END
+	 */
+	public int decode(BitReader in) {
+		int node = ROOT;
+		while (left[node] >= 0) {
+			node = in.readBit() ? right[node] : left[node];
+		}
+		int s;
+		if (node == nyt) {
+			s = (int) in.readBits(9);
+			Assert.notFalse(s < SYMBOLS && leaf[s] < 0, "Invalid symbol in compressed file");
+		} else {
+			s = symbol[node];
+		}
+		update(s);
+		return s;
+	}
+
+	/**
+	 * Write the path from the root to node, 32 bits at a time.
+	 */
+	private void writeCode(int node, BitWriter out) {
+		int depth = 0;
+		while (node != ROOT) {
+			path[depth++] = node;
+			node = parent[node];
+		}
+		long bits = 0;
+		int n = 0;
+		for (int i = depth - 1; i >= 0; i--) {
+			bits = (bits << 1) | (right[parent[path[i]]] == path[i] ? 1 : 0);
+			if (++n == 32) {
+				out.writeBits(bits, n);
+				bits = 0;
+				n = 0;
+			}
+		}
+		out.writeBits(bits, n);
+	}
+
+	private void update(int s) {
+		int node = leaf[s];
+		if (node < 0) {
+			// split the NYT leaf: the new NYT leaf on the left, s on the right
+			int old = nyt;
+			nyt = old - 2;
+			node = old - 1;
+			initLeaf(nyt, old, -1);
+			initLeaf(node, old, s);
+			left[old] = nyt;
+			right[old] = node;
+			leaf[s] = node;
+		}
+		while (node >= 0) {
+			// move to the highest numbered node of the same weight, unless
+			// that is the parent, before adding to the weight
+			int leader = node;
+			while (leader < ROOT && weight[leader + 1] == weight[node]) {
+				leader++;
+			}
+			if (leader != node && leader != parent[node]) {
+				swap(node, leader);
+				node = leader;
+			}
+			weight[node]++;
+			node = parent[node];
+		}
+	}
+
+	private void initLeaf(int node, int parentNode, int s) {
+		weight[node] = 0;
+		parent[node] = parentNode;
+		left[node] = -1;
+		right[node] = -1;
+		symbol[node] = s;
+	}
+
+	/**
+	 * Exchange the subtrees numbered a and b. Both keep their number; only
+	 * what hangs below them moves.
+	 */
+	private void swap(int a, int b) {
+		long w = weight[a];
+		weight[a] = weight[b];
+		weight[b] = w;
+		int t = left[a];
+		left[a] = left[b];
+		left[b] = t;
+		t = right[a];
+		right[a] = right[b];
+		right[b] = t;
+		t = symbol[a];
+		symbol[a] = symbol[b];
+		symbol[b] = t;
+		relink(a);
+		relink(b);
+		if (nyt == a) {
+			nyt = b;
+		} else if (nyt == b) {
+			nyt = a;
+		}
+	}
+
+	private void relink(int node) {
+		if (left[node] >= 0) {
+			parent[left[node]] = node;
+			parent[right[node]] = node;
+		} else if (symbol[node] >= 0) {
+			leaf[symbol[node]] = node;
+		}
+	}
+}
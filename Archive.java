@@ -0,0 +1,318 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * An archive of many files, each compressed on its own, with a central index
+ * at the end of the archive.
+ *
+ * An archive starts with the "HF" magic number and FORMAT_ARCHIVE. The
+ * members follow, each the Huffman coded text of one file padded to a whole
+ * byte. Then comes the index: the code tables (ID and code lengths) and, for
+ * every member, its name, offset, compressed and uncompressed size and the
+ * number of its code table. The last 8 bytes of the archive hold the offset
+ * of the index.
+ *
+ * Members either get a table of their own, or all share one table, trained
+ * on the files of the archive or given by the caller. Listing an archive
+ * reads only the index, and extracting a member reads only the index and
+ * that member.
+ */
+public class Archive {
+
+	public static final char FORMAT_ARCHIVE = 'R';
+
+	/** Bytes of magic number and format */
+	public static final int HEADER_SIZE = 3;
+
+	/** Bytes of index offset at the end of the archive */
+	public static final int TRAILER_SIZE = 8;
+
+	/**
+	 * An entry of the index
+	 */
+	public static class Member {
+		public String name;
+		public long offset;
+		public long compressedSize;
+		public long size;
+		public int table;
+	}
+
+	private ArrayList<CodeTable> tables = new ArrayList<CodeTable>();
+	private ArrayList<Member> members = new ArrayList<Member>();
+
+	/**
+	 * Handle the archive commands of Huffman.main:
+	 *
+	 * -A [-S] [-T table] [-l maxlength] source archive: create an archive of
+	 * the files of source (a directory, a glob or @listfile)
+	 *
+	 * -L archive: list the members of an archive
+	 *
+	 * -X archive [member] outfile: extract one member to outfile, or every
+	 * member into the directory outfile
+	 */
+	public static void command(String[] args) {
+		if (args[0].equals("-L") && args.length == 2) {
+			read(args[1]).list();
+		} else if (args[0].equals("-X") && args.length == 3) {
+			read(args[1]).extractAll(args[1], args[2]);
+		} else if (args[0].equals("-X") && args.length == 4) {
+			Archive archive = read(args[1]);
+			Member member = archive.find(args[2]);
+			if (member == null) {
+				System.err.println("No member " + args[2] + " in " + args[1] + ".");
+				System.exit(-1);
+			}
+			archive.extract(args[1], member, args[3]);
+		} else if (args[0].equals("-A") && args.length >= 3) {
+			boolean share = false;
+			CodeTable table = null;
+			int maxLength = CanonicalCode.MAX_LENGTH;
+			for (int i = 1; i < args.length - 2; i++) {
+				if (args[i].equals("-S")) {
+					share = true;
+				} else if (args[i].equals("-T") && i + 1 < args.length - 2) {
+					table = CodeTable.load(args[++i]);
+				} else if (args[i].equals("-l") && i + 1 < args.length - 2) {
+					maxLength = Integer.parseInt(args[++i]);
+					Assert.notFalse(maxLength >= 8 && maxLength <= CanonicalCode.MAX_LENGTH,
+							"Code length limit must be between 8 and " + CanonicalCode.MAX_LENGTH);
+				} else {
+					System.err.println("Unknown option " + args[i] + ".");
+					System.exit(-1);
+				}
+			}
+			create(args[args.length - 2], args[args.length - 1], share, table, maxLength);
+		} else {
+			System.err.println("Usage: -A [-S] [-T table] [-l maxlength] source archive, -L archive, or -X archive [member] outfile.");
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Create an archive of the files of source.
+	 *
+	 * @param share
+	 *            Whether every member shares one table trained on all of
+	 *            them, rather than each member getting its own
+	 * @param table
+	 *            A table for every member to share, or null
+	 */
+	public static void create(String source, String filename, boolean share, CodeTable table, int maxLength) {
+		ArrayList<String[]> files = Batch.list(source);
+		Archive archive = new Archive();
+		if (table == null && share && !files.isEmpty()) {
+			ArrayList<String> paths = new ArrayList<String>();
+			for (String[] file : files) {
+				paths.add(file[0]);
+			}
+			System.out.println("Training shared code table...");
+			table = CodeTable.train(paths, maxLength);
+		}
+		if (table != null) {
+			archive.tables.add(table);
+		}
+
+		System.out.println("Writing archive...");
+		new File(filename).delete();
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "rw");
+			FileChannel channel = file.getChannel();
+			BitWriter out = new BitWriter(Channels.newOutputStream(channel));
+			BinaryFile.writeMagic(out, FORMAT_ARCHIVE);
+
+			for (String[] entry : files) {
+				Member member = new Member();
+				member.name = entry[1].replace(File.separatorChar, '/');
+				member.offset = out.getBitCount() / 8;
+				if (table != null) {
+					member.table = 0;
+				} else {
+					// a table of the member's own
+					long[] freqs = Histogram.count(entry[0]);
+					HuffTree tree = new HuffTree(freqs);
+					tree.buildCompressionTree();
+					tree.makeCanonical(maxLength);
+					member.table = archive.tables.size();
+					archive.tables.add(CodeTable.fromLengths(tree.getCodeLengths()));
+				}
+				HuffTree tree = new HuffTree(archive.tables.get(member.table));
+				TextFile text = new TextFile(entry[0], 'r');
+				byte[] block = new byte[1 << 16];
+				int n;
+				while ((n = text.read(block, 0, block.length)) > 0) {
+					tree.encode(block, 0, n, out);
+					member.size += n;
+				}
+				text.close();
+				// pad the member out to a whole byte
+				out.writeBits(0, (int) (-out.getBitCount() & 7));
+				member.compressedSize = out.getBitCount() / 8 - member.offset;
+				archive.members.add(member);
+			}
+
+			long indexOffset = out.getBitCount() / 8;
+			archive.writeIndex(out);
+			out.writeBits(0, (int) (-out.getBitCount() & 7));
+			out.writeBits(indexOffset, 64);
+			out.flush();
+			file.close();
+		} catch (Exception e) {
+			new File(filename).delete();
+			throw Huffman.failed(e);
+		}
+		System.out.println(archive.members.size() + " files, " + archive.tables.size() + " code tables.");
+	}
+
+	private void writeIndex(BitWriter out) {
+		out.writeBits(tables.size(), 32);
+		for (CodeTable table : tables) {
+			out.writeBits(table.getId(), 32);
+			CanonicalCode.write(out, table.getCodeLengths());
+		}
+		out.writeBits(members.size(), 32);
+		for (Member member : members) {
+			byte[] name = member.name.getBytes(StandardCharsets.UTF_8);
+			out.writeBits(name.length, 16);
+			out.writeBytes(name, 0, name.length);
+			out.writeBits(member.offset, 64);
+			out.writeBits(member.compressedSize, 64);
+			out.writeBits(member.size, 64);
+			out.writeBits(member.table, 32);
+		}
+	}
+
+	/**
+	 * Read the index of an archive, and nothing else.
+	 */
+	public static Archive read(String filename) {
+		Archive archive = new Archive();
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			Assert.notFalse(file.length() >= HEADER_SIZE + TRAILER_SIZE && BinaryFile.readMagic(file, FORMAT_ARCHIVE),
+					filename + " is not an archive");
+			file.seek(file.length() - TRAILER_SIZE);
+			long indexOffset = file.readLong();
+			Assert.notFalse(indexOffset >= HEADER_SIZE && indexOffset <= file.length() - TRAILER_SIZE,
+					"Damaged index in " + filename);
+			file.seek(indexOffset);
+			BitReader in = new BitReader(Channels.newInputStream(file.getChannel()),
+					(file.length() - TRAILER_SIZE - indexOffset) * 8);
+
+			int tableCount = (int) in.readBits(32);
+			for (int i = 0; i < tableCount; i++) {
+				int id = (int) in.readBits(32);
+				CodeTable table = CodeTable.fromLengths(CanonicalCode.read(in));
+				Assert.notFalse(table.getId() == id, "Damaged code table in " + filename);
+				archive.tables.add(table);
+			}
+			int memberCount = (int) in.readBits(32);
+			for (int i = 0; i < memberCount; i++) {
+				Member member = new Member();
+				byte[] name = new byte[(int) in.readBits(16)];
+				in.readBytes(name, 0, name.length);
+				member.name = new String(name, StandardCharsets.UTF_8);
+				member.offset = readLong(in);
+				member.compressedSize = readLong(in);
+				member.size = readLong(in);
+				member.table = (int) in.readBits(32);
+				Assert.notFalse(member.table >= 0 && member.table < tableCount && member.offset >= HEADER_SIZE
+						&& member.compressedSize >= 0 && member.compressedSize <= indexOffset - member.offset
+						&& member.size >= 0, "Damaged index in " + filename);
+				archive.members.add(member);
+			}
+			// the reader runs on into the trailer, so check the index ended in time
+			Assert.notFalse(in.getBitsRead() <= in.getTotalBits(), "Damaged index in " + filename);
+			file.close();
+		} catch (Exception e) {
+			throw Huffman.failed(e);
+		}
+		return archive;
+	}
+
+	private static long readLong(BitReader in) {
+		return in.readBits(32) << 32 | in.readBits(32);
+	}
+
+	public ArrayList<Member> getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return The member with the given name, or null. create gives every
+	 *         member a name of its own, as Batch.list rejects sources that
+	 *         name a file twice.
+	 */
+	public Member find(String name) {
+		for (Member member : members) {
+			if (member.name.equals(name)) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	public void list() {
+		System.out.println("Size\t\tCompressed\tTable\t\tName");
+		System.out.println("------------------------------------------------------------");
+		long size = 0;
+		long compressedSize = 0;
+		for (Member member : members) {
+			System.out.printf("%d\t\t%d\t\t%08x\t%s%n", member.size, member.compressedSize,
+					tables.get(member.table).getId(), member.name);
+			size += member.size;
+			compressedSize += member.compressedSize;
+		}
+		System.out.println("------------------------------------------------------------");
+		System.out.println(size + "\t\t" + compressedSize + "\t\t\t\t" + members.size() + " files");
+	}
+
+	/**
+	 * Decode one member of the archive, reading only its own bytes.
+	 */
+	public void extract(String filename, Member member, String output) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			file.seek(member.offset);
+			BitReader in = new BitReader(Channels.newInputStream(file.getChannel()),
+					member.compressedSize * 8);
+			HuffTree tree = new HuffTree(tables.get(member.table));
+			File parent = new File(output).getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			new File(output).delete();
+			TextFile text = new TextFile(output, 'w');
+			byte[] block = new byte[1 << 16];
+			for (long done = 0; done < member.size;) {
+				int n = (int) Math.min(block.length, member.size - done);
+				tree.decode(in, block, 0, n);
+				text.write(block, 0, n);
+				done += n;
+			}
+			text.close();
+			file.close();
+		} catch (Exception e) {
+			new File(output).delete();
+			throw Huffman.failed(e);
+		}
+	}
+
+	/**
+	 * Decode every member into the directory outDir, under its own name.
+	 */
+	public void extractAll(String filename, String outDir) {
+		for (Member member : members) {
+			// keep every member inside outDir
+			Assert.notFalse(!member.name.startsWith("/") && !("/" + member.name + "/").contains("/../"),
+					"Unsafe member name " + member.name);
+			extract(filename, member, new File(outDir, member.name).getPath());
+		}
+		System.out.println(members.size() + " files extracted.");
+	}
+}
@@ -4,8 +4,8 @@ public class Assert {
 
     public static void notFalse(boolean flag, String message) {
 	if (!flag) {
-	    System.out.println(message);
-	    throw new IllegalArgumentException();
+	    // whoever catches it prints the message
+	    throw new IllegalArgumentException(message);
 	}
     }
 
@@ -18,8 +18,7 @@ public class Assert {
 
     public static void notNull(Object obj, String message) {
 	if (obj == null) {
-	    System.out.println(message);
-	    throw new IllegalArgumentException();
+	    throw new IllegalArgumentException(message);
 	}
     }
 
@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Compresses or decompresses many files in one run, several at a time on a
+ * bounded pool of worker threads, so the JVM starts and warms up only once.
+ * Each file is coded on its own thread with its own Huffman object. When
+ * every file is done, a line per file and the totals are printed.
+ *
+ * The files to code are given as a directory (every file in it and its
+ * subdirectories), a glob such as "logs/*.json", or "@list" for a file that
+ * names one file per line. Compressed files get the extension EXTENSION;
+ * decompressing removes it again, or adds ".out" to names without it.
+ * If any file fails, the run exits with a nonzero status once the summary
+ * is printed.
+ */
+public class Batch {
+
+	public static final String EXTENSION = ".huff";
+
+	/**
+	 * The outcome of one file
+	 */
+	private static class Result {
+		String input;
+		long sizeIn;
+		long sizeOut = -1; // -1: no output was written
+		long nanos;
+		String error;
+	}
+
+	/**
+	 * @param options
+	 *            The options for every file, which also say whether to
+	 *            compress or decompress
+	 * @param source
+	 *            A directory, a glob or "@" and the name of a file list
+	 * @param outDir
+	 *            The directory to write to; created if it does not exist
+	 * @param jobs
+	 *            The number of files to code at the same time
+	 */
+	public static void run(final Huffman options, String source, String outDir, int jobs) {
+		ArrayList<File[]> files = new ArrayList<File[]>();
+		collect(source, new File(outDir), options.isCompress(), files);
+		System.out.println((options.isCompress() ? "Compressing " : "Decompressing ")
+				+ files.size() + " files on " + jobs + " threads...");
+
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		ArrayList<Future<Result>> pending = new ArrayList<Future<Result>>();
+		long start = System.nanoTime();
+		for (final File[] pair : files) {
+			pending.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return code(options, pair[0], pair[1]);
+				}
+			}));
+		}
+
+		long totalIn = 0;
+		long totalOut = 0;
+		long processed = 0; // bytes read, written or not
+		int failed = 0;
+		int skipped = 0;
+		try {
+			for (Future<Result> future : pending) {
+				Result r = future.get();
+				if (r.error != null) {
+					failed++;
+					System.out.println(r.input + "\tfailed: " + r.error);
+					continue;
+				}
+				processed += r.sizeIn;
+				if (r.sizeOut < 0) {
+					skipped++;
+					System.out.println(r.input + "\t" + r.sizeIn + " bytes, not compressed (would not be smaller)");
+					continue;
+				}
+				totalIn += r.sizeIn;
+				totalOut += r.sizeOut;
+				System.out.printf("%s\t%d -> %d bytes\t%.1f%%\t%.1f ms%n", r.input, r.sizeIn, r.sizeOut,
+						100.0 * r.sizeOut / Math.max(1, r.sizeIn), r.nanos / 1e6);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		pool.shutdown();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println();
+		System.out.printf("%d files, %d -> %d bytes (%.1f%%), %.2f s, %.1f MB/s%n",
+				files.size() - failed - skipped, totalIn, totalOut,
+				100.0 * totalOut / Math.max(1, totalIn), seconds,
+				processed / 1e6 / Math.max(seconds, 1e-9));
+		if (skipped > 0) {
+			System.out.println(skipped + " files not compressed.");
+		}
+		if (failed > 0) {
+			System.out.println(failed + " files failed.");
+		}
+		if (options.isStatsJson()) {
+			// the heap is shared by all files, so its peak is one per run
+			System.err.println("{\"operation\":\"batch\",\"files\":" + files.size()
+					+ ",\"peakHeapBytes\":" + Stats.peakHeap() + "}");
+		}
+		if (failed > 0) {
+			// so that scripts can tell
+			System.exit(-1);
+		}
+	}
+
+	private static Result code(Huffman options, File in, File out) {
+		Result r = new Result();
+		r.input = in.getPath();
+		r.sizeIn = in.length();
+		long start = System.nanoTime();
+		try {
+			File parent = out.getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			out.delete();
+			if (!options.forFiles(in.getPath(), out.getPath()).run()) {
+				r.error = "not a compressed file, or its code table is missing";
+			} else if (out.exists()) {
+				r.sizeOut = out.length();
+			}
+		} catch (Exception e) {
+			// only this file failed; what was written of it is of no use
+			out.delete();
+			r.error = e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+		r.nanos = System.nanoTime() - start;
+		return r;
+	}
+
+	/**
+	 * List the input files and the output file for each.
+	 */
+	private static void collect(String source, File outDir, boolean compress, ArrayList<File[]> files) {
+		HashSet<String> outputs = new HashSet<String>();
+		for (String[] entry : list(source)) {
+			File out = new File(outDir, outputName(entry[1], compress));
+			// two jobs writing one file would leave it corrupt
+			if (!outputs.add(out.getAbsolutePath())) {
+				System.err.println("Two files of " + source + " would both be written to " + out + ".");
+				System.exit(-1);
+			}
+			files.add(new File[] { new File(entry[0]), out });
+		}
+	}
+
+	/**
+	 * List the files named by a source: a directory, a glob or "@" and the
+	 * name of a file list.
+	 *
+	 * @return The path of each file and its name relative to the source
+	 *         directory (for file lists, relative to the deepest directory
+	 *         that holds every listed file). No two files have the same name.
+	 */
+	public static ArrayList<String[]> list(String source) {
+		ArrayList<String[]> files = new ArrayList<String[]>();
+		try {
+			if (source.startsWith("@")) {
+				BufferedReader list = new BufferedReader(new FileReader(source.substring(1)));
+				ArrayList<Path> paths = new ArrayList<Path>();
+				Path root = null;
+				String line;
+				while ((line = list.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty()) {
+						Path path = Paths.get(line).toAbsolutePath().normalize();
+						paths.add(path);
+						root = root == null ? path.getParent() : commonParent(root, path);
+					}
+				}
+				list.close();
+				for (Path path : paths) {
+					files.add(new String[] { path.toString(), root.relativize(path).toString() });
+				}
+				checkUnique(source, files);
+				return files;
+			}
+
+			Path base;
+			PathMatcher matcher = null;
+			if (new File(source).isDirectory()) {
+				base = Paths.get(source);
+			} else {
+				// the glob applies below the last directory without wildcards
+				Path pattern = Paths.get(source);
+				base = pattern.isAbsolute() ? pattern.getRoot() : Paths.get("");
+				int i = 0;
+				while (i < pattern.getNameCount() - 1 && !hasWildcard(pattern.getName(i).toString())) {
+					base = base.resolve(pattern.getName(i));
+					i++;
+				}
+				matcher = FileSystems.getDefault().getPathMatcher(
+						"glob:" + pattern.subpath(i, pattern.getNameCount()));
+			}
+			Path root = base.toString().isEmpty() ? Paths.get(".") : base;
+			Stream<Path> walk = Files.walk(root);
+			for (Object o : walk.sorted().toArray()) {
+				Path path = (Path) o;
+				Path relative = root.relativize(path);
+				if (Files.isRegularFile(path) && (matcher == null || matcher.matches(relative))) {
+					files.add(new String[] { path.toString(), relative.toString() });
+				}
+			}
+			walk.close();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		checkUnique(source, files);
+		return files;
+	}
+
+	/**
+	 * @return The deepest directory that holds both the directory dir and
+	 *         the file path
+	 */
+	private static Path commonParent(Path dir, Path path) {
+		while (!path.startsWith(dir)) {
+			dir = dir.getParent();
+		}
+		return dir;
+	}
+
+	/**
+	 * Stop if two files have the same name, such as a file listed twice;
+	 * their outputs or archive members would clash.
+	 */
+	private static void checkUnique(String source, ArrayList<String[]> files) {
+		HashSet<String> names = new HashSet<String>();
+		for (String[] file : files) {
+			if (!names.add(file[1])) {
+				System.err.println(source + " names " + file[1] + " more than once.");
+				System.exit(-1);
+			}
+		}
+	}
+
+	private static boolean hasWildcard(String name) {
+		return name.indexOf('*') >= 0 || name.indexOf('?') >= 0
+				|| name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+	}
+
+	private static String outputName(String name, boolean compress) {
+		if (compress) {
+			return name + EXTENSION;
+		}
+		if (name.endsWith(EXTENSION) && name.length() > EXTENSION.length()) {
+			return name.substring(0, name.length() - EXTENSION.length());
+		}
+		return name + ".out";
+	}
+}
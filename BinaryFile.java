@@ -1,9 +1,25 @@
 import java.io.*;
+import java.nio.channels.Channels;
 
 /* Author: David Galles */
 
 public class BinaryFile {
 
+	/**
+	 * Bit count header of a file written by a stream that could not go back
+	 * to fill it in. Every bit up to the end of such a file is data.
+	 */
+	public static final int LENGTH_UNKNOWN = -1;
+
+	/**
+	 * Bit count header of files whose bit count follows as a 64-bit number.
+	 * Older files hold a 32-bit bit count, which limited them to 2^31 bits.
+	 */
+	public static final int LENGTH_64 = -2;
+
+	/** Bytes in front of the bits of every file this class writes */
+	public static final int HEADER_SIZE = 12;
+
 	/**
 	 * Binary File constructor. Open a file for reading, or create a file for
 	 * writing. If we create a file, and a file already exists with that name,
@@ -16,27 +32,35 @@ public class BinaryFile {
 	 *            'R' for an input file (open for reading)
 	 */
 	public BinaryFile(String filename, char readOrWrite) {
-		buffer = (byte) 0;
-		int buf_length = 0;
-		total_bits = 0;
-		bitsleft = 0;
-		bitsread = 0;
-		total_bits = 0;
-		buffer = 0;
-		bitsread = 0;
 		try {
 			if (readOrWrite == 'w' || readOrWrite == 'W') {
 				inputFile = false;
 				file = new RandomAccessFile(filename, "rw");
-				file.writeInt(0); /* header -- # of bits in the file */
+				file.writeInt(LENGTH_64);
+				file.writeLong(0); /* header -- # of bits in the file */
+				writer = new BitWriter(Channels.newOutputStream(file.getChannel()));
 			} else if (readOrWrite == 'r' || readOrWrite == 'R') {
 				inputFile = true;
 				file = new RandomAccessFile(filename, "r");
-				total_bits = file.readInt();
+				Assert.notFalse(file.length() >= 4, "Unexpected end of file");
+				int header = file.readInt();
+				long total_bits;
+				if (header == LENGTH_64) {
+					Assert.notFalse(file.length() >= HEADER_SIZE, "Unexpected end of file");
+					total_bits = file.readLong();
+				} else if (header == LENGTH_UNKNOWN) {
+					total_bits = (file.length() - 4) * 8;
+				} else {
+					total_bits = header & 0xFFFFFFFFL;
+				}
+				reader = new BitReader(Channels.newInputStream(file.getChannel()), total_bits);
+				dataBits = Math.min(total_bits, (file.length() - file.getFilePointer()) * 8);
 			}
+		} catch (RuntimeException e) {
+			throw e;
 		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			System.exit(0);
+			// the caller decides whether the run, or just this file, fails
+			throw new RuntimeException(e.getMessage(), e);
 		}
 	}
 
@@ -51,12 +75,12 @@ public class BinaryFile {
 	 */
 	public boolean EndOfFile() {
 		Assert.notFalse(inputFile, "EndOfFile only relevant for input files");
-		return bitsread == total_bits;
+		return reader.getBitsRead() >= reader.getTotalBits();
 	}
 
 	public boolean EndOfPaddedFile(int padding) {
 		Assert.notFalse(inputFile, "EndOfFile only relevant for input files");
-		return bitsread == total_bits - padding;
+		return reader.getBitsRead() >= reader.getTotalBits() - padding;
 	}
 
 	/**
@@ -69,24 +93,9 @@ public class BinaryFile {
 	 * @return The next character from an input file
 	 */
 	public char readChar() {
-		int charbuf = 0;
-		int revcharbuf = 0;
-		int i;
-		
 		Assert.notFalse(inputFile, "Can only read from input files");
-
-		for (i = 0; i < 8; i++) {
-			charbuf = charbuf << 1;
-			if (readBit()) {
-				charbuf += 1;
-			}
-		}
-		for (i = 0; i < 8; i++) {
-			revcharbuf = revcharbuf << 1;
-			revcharbuf += charbuf % 2;
-			charbuf = charbuf >> 1;
-		}
-		return (char) revcharbuf;
+		// characters are stored lowest bit first
+		return (char) storedChar((int) reader.readBits(8));
 	}
 
 	/**
@@ -102,13 +111,7 @@ public class BinaryFile {
 	 */
 	public void writeChar(char c) {
 		Assert.notFalse(!inputFile, "Can only write to output files");
-
-		int i;
-		int charbuf = (int) c;
-		for (i = 0; i < 8; i++) {
-			writeBit(charbuf % 2 > 0);
-			charbuf = charbuf >> 1;
-		}
+		writer.writeBits(storedChar(c), 8);
 	}
 
 	/**
@@ -121,25 +124,20 @@ public class BinaryFile {
 	 *            The bit to write. false writes a 0 and true writes a 1.
 	 */
 	public void writeBit(boolean bit) {
-		byte bit_;
-		Assert.notFalse(!inputFile, "Can't write to an input file");
-		total_bits++;
-
-		if (bit)
-			bit_ = 1;
-		else
-			bit_ = 0;
-		buffer |= (bit_ << (7 - buf_length++));
-		try {
-			if (buf_length == 8) {
-				file.writeByte(buffer);
-				buf_length = 0;
-				buffer = 0;
-			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			System.exit(0);
-		}
+		writer.writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Write the low n bits of bits, highest of them first. This method is only
+	 * valid for output files.
+	 * 
+	 * @param bits
+	 *            The bits to write, right-aligned
+	 * @param n
+	 *            The number of bits to write, 0 to 64
+	 */
+	public void writeBits(long bits, int n) {
+		writer.writeBits(bits, n);
 	}
 
 	/**
@@ -151,20 +149,102 @@ public class BinaryFile {
 	 * @return The next bit in the input file -- false for 0 and true for 1.
 	 */
 	public boolean readBit() {
+		return reader.readBits(1) != 0;
+	}
 
-		Assert.notFalse(inputFile, "Can't read from an output file");
-		Assert.notFalse(bitsread < total_bits, "Read past end of file");
-		try {
-			if (bitsleft == 0) {
-				buffer = file.readByte();
-				bitsleft = 8;
-			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			System.exit(0);
-		}
-		bitsread++;
-		return (((buffer >> --bitsleft) & 0x01) > 0);
+	/**
+	 * Read the next n bits from an input file. This method is only valid for
+	 * input files, and will halt execution if it reads past the end of the
+	 * file.
+	 * 
+	 * @param n
+	 *            The number of bits to read, 0 to BitReader.MAX_BITS
+	 * @return The bits read, right-aligned, first bit highest
+	 */
+	public long readBits(int n) {
+		return reader.readBits(n);
+	}
+
+	/**
+	 * Look at the next n bits of an input file without consuming them. Bits
+	 * past the end of the file read as 0.
+	 * 
+	 * @param n
+	 *            The number of bits to look at, 1 to BitReader.MAX_BITS
+	 * @return The bits, right-aligned, first bit highest
+	 */
+	public long peekBits(int n) {
+		return reader.peekBits(n);
+	}
+
+	/**
+	 * Consume n bits that have already been looked at with peekBits.
+	 */
+	public void skipBits(int n) {
+		reader.skipBits(n);
+	}
+
+	/**
+	 * @return The bit writer behind an output file
+	 */
+	public BitWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * @return The number of bytes in front of the bits of a file that starts
+	 *         with this bit count header
+	 */
+	public static int headerSize(int header) {
+		return header == LENGTH_64 ? HEADER_SIZE : 4;
+	}
+
+	/**
+	 * Write the "HF" magic number and a format character, stored lowest bit
+	 * first as writeChar stores characters.
+	 */
+	public static void writeMagic(BitWriter out, char format) {
+		out.writeBits(storedChar('H'), 8);
+		out.writeBits(storedChar('F'), 8);
+		out.writeBits(storedChar(format), 8);
+	}
+
+	/**
+	 * Read 3 bytes and check them against the "HF" magic number and a format
+	 * character, as written by writeMagic.
+	 *
+	 * @return Whether the bytes read match
+	 */
+	public static boolean readMagic(DataInput in, char format) throws IOException {
+		int h = storedChar(in.readUnsignedByte());
+		int f = storedChar(in.readUnsignedByte());
+		int c = storedChar(in.readUnsignedByte());
+		return h == 'H' && f == 'F' && c == format;
+	}
+
+	/**
+	 * Characters are stored lowest bit first, so the same reversal turns a
+	 * character into its stored byte and a stored byte back into the
+	 * character.
+	 */
+	private static int storedChar(int c) {
+		return Integer.reverse(c & 0xFF) >>> 24;
+	}
+
+	/**
+	 * @return The number of bits of an input file that have not been read,
+	 *         counting only those that are really in the file
+	 */
+	public long bitsLeft() {
+		Assert.notFalse(inputFile, "bitsLeft only relevant for input files");
+		return dataBits - reader.getBitsRead();
+	}
+
+	/**
+	 * @return The bit reader behind an input file
+	 */
+	public BitReader getReader() {
+		return reader;
 	}
 
 	/**
@@ -174,14 +254,9 @@ public class BinaryFile {
 	public void close() {
 		try {
 			if (!inputFile) {
-				if (buf_length != 0) {
-					while (buf_length < 8) {
-						buffer |= (0 << (7 - buf_length++));
-					}
-					file.writeByte(buffer);
-				}
-				file.seek(0);
-				file.writeInt(total_bits);
+				writer.flush();
+				file.seek(4);
+				file.writeLong(writer.getBitCount());
 			}
 			file.close();
 		} catch (Exception e) {
@@ -193,9 +268,7 @@ public class BinaryFile {
 
 	private boolean inputFile;
 	private RandomAccessFile file;
-	private byte buffer;
-	private int buf_length;
-	private int total_bits;
-	private int bitsleft;
-	private int bitsread;
+	private BitWriter writer;
+	private BitReader reader;
+	private long dataBits;
 }
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits, first bit highest in each byte, through a 64-bit accumulator.
+ * The accumulator is refilled from a byte buffer up to eight bytes at a time
+ * and the buffer from the underlying stream only when it runs dry, so peeking
+ * at the next code and skipping over it are a shift each.
+ *
+ * Bits past totalBits read as 0, so a decoder may look further ahead than
+ * the data goes. But if the input ends before totalBits, it was cut short,
+ * and a read or peek that reaches past its end fails rather than making up
+ * the missing bits.
+ */
+public class BitReader {
+
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	/** Largest n accepted by peekBits and readBits */
+	public static final int MAX_BITS = 56;
+
+	private InputStream in;
+	private ByteBuffer buffer;
+	// unread bits, left-aligned; the bits below them are always 0
+	private long acc;
+	private int accBits;
+	private long totalBits;
+	private long bitsRead;
+	// the input has no more bytes than those in the buffer
+	private boolean ended;
+
+	/**
+	 * Bit reader for a stream.
+	 *
+	 * @param totalBits
+	 *            Number of bits that may be read from the stream
+	 */
+	public BitReader(InputStream in, long totalBits) {
+		this.in = in;
+		this.totalBits = totalBits;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.flip();
+	}
+
+	/**
+	 * Bit reader for the bytes between the buffer's position and its limit.
+	 */
+	public BitReader(ByteBuffer source, long totalBits) {
+		this.totalBits = totalBits;
+		buffer = source.slice();
+	}
+
+	/**
+	 * Look at the next n bits without consuming them. Bits past totalBits
+	 * read as 0.
+	 *
+	 * @param n
+	 *            Number of bits, 1 to MAX_BITS
+	 * @return The bits, right-aligned, first bit highest
+	 */
+	public long peekBits(int n) {
+		if (accBits < n) {
+			refill();
+			if (accBits < n && ended) {
+				checkAvailable(n);
+			}
+		}
+		return acc >>> (64 - n);
+	}
+
+	/**
+	 * Fail if the next n bits, up to totalBits, are not all in the
+	 * accumulator, once the input has ended.
+	 */
+	private void checkAvailable(long n) {
+		Assert.notFalse(accBits >= Math.min(n, totalBits - bitsRead), "Unexpected end of file");
+	}
+
+	/**
+	 * Consume n bits that have already been looked at with peekBits.
+	 */
+	public void skipBits(int n) {
+		acc <<= n;
+		accBits -= n;
+		bitsRead += n;
+	}
+
+	/**
+	 * Read the next n bits.
+	 *
+	 * @param n
+	 *            Number of bits, 0 to MAX_BITS
+	 * @return The bits, right-aligned, first bit highest
+	 */
+	public long readBits(int n) {
+		if (n == 0) {
+			return 0;
+		}
+		Assert.notFalse(bitsRead + n <= totalBits, "Read past end of file");
+		long bits = peekBits(n);
+		skipBits(n);
+		return bits;
+	}
+
+	/**
+	 * Read len whole bytes into b. When the input is on a byte boundary the
+	 * bytes are copied in bulk rather than shifted through the accumulator.
+	 */
+	public void readBytes(byte[] b, int off, int len) {
+		Assert.notFalse(bitsRead + 8L * len <= totalBits, "Read past end of file");
+		if ((accBits & 7) != 0) {
+			for (int i = off; i < off + len; i++) {
+				b[i] = (byte) readBits(8);
+			}
+			return;
+		}
+		bitsRead += 8L * len;
+		while (len > 0 && accBits > 0) {
+			b[off++] = (byte) (acc >>> 56);
+			acc <<= 8;
+			accBits -= 8;
+			len--;
+		}
+		while (len > 0) {
+			Assert.notFalse(buffer.hasRemaining() || fill(), "Unexpected end of file");
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public boolean readBit() {
+		return readBits(1) != 0;
+	}
+
+	public long getBitsRead() {
+		return bitsRead;
+	}
+
+	public long getTotalBits() {
+		return totalBits;
+	}
+
+	private void refill() {
+		if (buffer.remaining() >= 8) {
+			int pos = buffer.position();
+			int bytes = (64 - accBits) >>> 3;
+			acc |= buffer.getLong(pos) >>> accBits;
+			accBits += bytes << 3;
+			acc &= -1L << (64 - accBits);
+			buffer.position(pos + bytes);
+		} else {
+			while (accBits <= 56 && (buffer.hasRemaining() || fill())) {
+				acc |= (buffer.get() & 0xFFL) << (56 - accBits);
+				accBits += 8;
+			}
+		}
+	}
+
+	private boolean fill() {
+		if (in == null) {
+			ended = true;
+			return false;
+		}
+		buffer.compact();
+		int read = 0;
+		try {
+			read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		if (read > 0) {
+			buffer.position(buffer.position() + read);
+		} else {
+			ended = true;
+		}
+		buffer.flip();
+		return read > 0;
+	}
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes bits, first bit highest in each byte, through a 64-bit accumulator.
+ * Bits are moved into a byte buffer 32 at a time, and the buffer is handed to
+ * the underlying stream only when it fills up, so writing a code of any
+ * length costs a shift and an or.
+ */
+public class BitWriter {
+
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	private OutputStream out;
+	private ByteBuffer buffer;
+	// pending bits, right-aligned; fewer than 32 between calls
+	private long acc;
+	private int accBits;
+	private long totalBits;
+
+	/**
+	 * Bit writer for a stream. Nothing reaches the stream until the buffer
+	 * fills up or flush is called.
+	 */
+	public BitWriter(OutputStream out) {
+		this.out = out;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Bit writer that fills the given buffer from its current position. The
+	 * buffer must have room for every byte written.
+	 */
+	public BitWriter(ByteBuffer destination) {
+		buffer = destination;
+	}
+
+	/**
+	 * Write the low n bits of bits, highest of them first.
+	 *
+	 * @param n
+	 *            Number of bits to write, 0 to 64
+	 */
+	public void writeBits(long bits, int n) {
+		if (n > 32) {
+			writeBits(bits >>> 32, n - 32);
+			n = 32;
+		}
+		acc = (acc << n) | (bits & ((1L << n) - 1));
+		accBits += n;
+		totalBits += n;
+		if (accBits >= 32) {
+			if (buffer.remaining() < 4) {
+				drain();
+			}
+			accBits -= 32;
+			buffer.putInt((int) (acc >>> accBits));
+		}
+	}
+
+	/**
+	 * Write len whole bytes. When the output is on a byte boundary the bytes
+	 * are copied in bulk rather than shifted through the accumulator.
+	 */
+	public void writeBytes(byte[] b, int off, int len) {
+		if ((accBits & 7) != 0) {
+			for (int i = off; i < off + len; i++) {
+				writeBits(b[i], 8);
+			}
+			return;
+		}
+		while (accBits > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			accBits -= 8;
+			buffer.put((byte) (acc >>> accBits));
+		}
+		totalBits += 8L * len;
+		if (out != null && len >= buffer.capacity()) {
+			drain();
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(0);
+			}
+			return;
+		}
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write the bytes between the position and the limit of b, without moving
+	 * the position, as writeBytes(byte[], int, int) does.
+	 */
+	public void writeBytes(ByteBuffer b) {
+		if (b.hasArray()) {
+			writeBytes(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(b.remaining(), BUFFER_SIZE)];
+		for (int i = b.position(); i < b.limit(); i += chunk.length) {
+			int n = Math.min(chunk.length, b.limit() - i);
+			b.get(i, chunk, 0, n);
+			writeBytes(chunk, 0, n);
+		}
+	}
+
+	public void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * @return The number of bits written so far, not counting padding
+	 */
+	public long getBitCount() {
+		return totalBits;
+	}
+
+	/**
+	 * Pad the last partial byte with zeros and push every buffered byte to
+	 * the stream.
+	 */
+	public void flush() {
+		while (accBits > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			if (accBits >= 8) {
+				accBits -= 8;
+				buffer.put((byte) (acc >>> accBits));
+			} else {
+				buffer.put((byte) (acc << (8 - accBits)));
+				accBits = 0;
+			}
+		}
+		drain();
+		try {
+			if (out != null) {
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+	}
+
+	private void drain() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.write(buffer.array(), 0, buffer.position());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		buffer.clear();
+	}
+}
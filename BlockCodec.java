@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Codes blocks of the block container format. Each block is coded on its
+ * own, with its own code table, so blocks can be compressed and decompressed
+ * independently of each other and in any order.
+ *
+ * A file in the block format holds the "HF" magic number, FORMAT_BLOCKS and
+ * the block size, followed by the blocks. Every block starts with its type
+ * (8 bits), the number of characters it holds (32 bits) and the length of its
+ * payload in bytes (32 bits). A block of type TYPE_END, with no length
+ * fields, ends the file.
+ *
+ * The payload of a TYPE_HUFFMAN block is the code lengths followed by the
+ * codes of its characters. A TYPE_HUFFMAN_X4 block deals its characters out
+ * round-robin to STREAMS bit streams, so that the decoder can decode the
+ * streams side by side instead of one code after the other. Its payload is
+ * the code lengths padded to a byte, the byte lengths of every stream but
+ * the last (32 bits each), and then the streams, each padded to a byte.
+ * Blocks of at least STREAMS_MIN_LENGTH characters are coded this way.
+ *
+ * With the order-1 context model, a block may instead be a TYPE_CONTEXT
+ * block, whose payload is a ContextModel followed by the codes of its
+ * characters, each coded with the code of the character before it. A block
+ * is only coded this way when that makes it smaller.
+ *
+ * A block that Huffman coding would not make smaller is stored as a
+ * TYPE_STORED block, whose payload is the characters themselves, and a block
+ * of a single character repeated is a TYPE_RUN block, whose payload is that
+ * character. Neither needs any coding, so a file never grows by more than
+ * the block headers, and incompressible parts cost no more than a copy.
+ */
+public class BlockCodec {
+
+	public static final char FORMAT_BLOCKS = 'B';
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	/** Bytes of magic number, format and block size */
+	public static final int FILE_HEADER_SIZE = 7;
+
+	/** Bytes of type, character count and payload length */
+	public static final int BLOCK_HEADER_SIZE = 9;
+
+	public static final int TYPE_END = 0;
+	public static final int TYPE_HUFFMAN = 1;
+	public static final int TYPE_HUFFMAN_X4 = 2;
+	public static final int TYPE_CONTEXT = 3;
+	public static final int TYPE_STORED = 4;
+	public static final int TYPE_RUN = 5;
+
+	/** Names of the block types, for -v */
+	public static final String[] TYPE_NAMES = { "end", "huffman", "huffman x4", "context", "stored", "run" };
+
+	/** Number of interleaved streams of a TYPE_HUFFMAN_X4 block */
+	public static final int STREAMS = 4;
+
+	/** Shortest block coded as TYPE_HUFFMAN_X4 */
+	public static final int STREAMS_MIN_LENGTH = 1 << 14;
+
+	/**
+	 * A block, planned by plan and coded by encode
+	 */
+	public static class Block {
+		public int type;
+		public int rawLength;
+		public int payloadLength;
+		public byte[] payload;
+		public long[] freqs;
+		/** Bits the code length limit added to the payload */
+		public long limitCost;
+		/** Bytes of each stream of a TYPE_HUFFMAN_X4 block */
+		public int[] streamLengths;
+		private HuffTree tree;
+		private ContextModel model;
+	}
+
+	/**
+	 * Count the characters between the position and the limit of src and
+	 * choose their code, or whether to store them or code them as a run. The
+	 * payload length of the returned block is exact, but nothing has been
+	 * coded yet.
+	 *
+	 * @param maxLength
+	 *            The longest code allowed, at most CanonicalCode.MAX_LENGTH
+	 * @param context
+	 *            True to also plan the block with an order-1 context model,
+	 *            and code it with that if it is smaller
+	 * @param stats
+	 *            Where to time the phases, or Stats.NONE
+	 */
+	public static Block plan(ByteBuffer src, int maxLength, boolean context, Stats stats) {
+		long t = Stats.now();
+		boolean interleave = src.remaining() >= STREAMS_MIN_LENGTH;
+		long[][] streamFreqs = null;
+		long[] freqs;
+		if (interleave) {
+			streamFreqs = Histogram.count(src, STREAMS);
+			freqs = new long[256];
+			for (long[] counts : streamFreqs) {
+				for (int c = 0; c < 256; c++) {
+					freqs[c] += counts[c];
+				}
+			}
+		} else {
+			freqs = Histogram.count(src);
+		}
+		t = stats.add(Stats.HISTOGRAM, t);
+		Block block = new Block();
+		block.rawLength = src.remaining();
+		block.freqs = freqs;
+		int distinct = 0;
+		for (int c = 0; c < 256; c++) {
+			if (freqs[c] > 0) {
+				distinct++;
+			}
+		}
+		if (distinct == 1) {
+			block.type = TYPE_RUN;
+			block.payloadLength = 1;
+			stats.addHeaderBits(8 * BLOCK_HEADER_SIZE);
+			return block;
+		}
+
+		HuffTree tree = new HuffTree(freqs);
+		tree.buildCompressionTree();
+		t = stats.add(Stats.TREE, t);
+		tree.makeCanonical(maxLength);
+		int[] lengths = tree.getCodeLengths();
+		stats.add(Stats.TABLE, t);
+
+		long headerBits;
+		if (interleave) {
+			// code lengths and stream lengths, then whole-byte streams
+			long bytes = (CanonicalCode.headerBits(lengths) + 7) / 8 + 4 * (STREAMS - 1);
+			headerBits = 8 * bytes;
+			block.type = TYPE_HUFFMAN_X4;
+			block.streamLengths = new int[STREAMS];
+			for (int k = 0; k < STREAMS; k++) {
+				block.streamLengths[k] = (int) ((CanonicalCode.encodedBits(streamFreqs[k], lengths) + 7) / 8);
+				bytes += block.streamLengths[k];
+			}
+			block.payloadLength = (int) bytes;
+		} else {
+			long bits = CanonicalCode.headerBits(lengths)
+					+ CanonicalCode.encodedBits(freqs, lengths);
+			headerBits = CanonicalCode.headerBits(lengths);
+			block.type = TYPE_HUFFMAN;
+			block.payloadLength = (int) ((bits + 7) / 8);
+		}
+		block.limitCost = tree.getLimitCost();
+		block.tree = tree;
+
+		if (context) {
+			t = Stats.now();
+			int[] pairs = Histogram.countPairs(src);
+			t = stats.add(Stats.HISTOGRAM, t);
+			ContextModel model = ContextModel.build(pairs, maxLength);
+			stats.add(Stats.TREE, t);
+			long bits = model.headerBits() + model.encodedBits(pairs);
+			if ((bits + 7) / 8 < block.payloadLength) {
+				headerBits = model.headerBits();
+				block.type = TYPE_CONTEXT;
+				block.payloadLength = (int) ((bits + 7) / 8);
+				block.streamLengths = null;
+				block.limitCost = model.getLimitCost();
+				block.model = model;
+			}
+		}
+		if (block.payloadLength >= block.rawLength) {
+			headerBits = 0;
+			block.type = TYPE_STORED;
+			block.payloadLength = block.rawLength;
+			block.streamLengths = null;
+			block.limitCost = 0;
+			block.model = null;
+		}
+		stats.addHeaderBits(8 * BLOCK_HEADER_SIZE + headerBits);
+		return block;
+	}
+
+	/**
+	 * Code the payload of a planned block. The last byte of a TYPE_HUFFMAN
+	 * or TYPE_CONTEXT payload is left partly filled.
+	 */
+	public static void encode(Block block, ByteBuffer src, BitWriter out, Stats stats) {
+		long t = Stats.now();
+		if (block.type == TYPE_STORED) {
+			out.writeBytes(src);
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		if (block.type == TYPE_RUN) {
+			out.writeBits(src.get(src.position()), 8);
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		if (block.type == TYPE_CONTEXT) {
+			block.model.write(out);
+			t = stats.add(Stats.HEADER, t);
+			block.model.encode(src, out);
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		CanonicalCode.write(out, block.tree.getCodeLengths());
+		if (block.type == TYPE_HUFFMAN_X4) {
+			padToByte(out);
+			for (int k = 0; k < STREAMS - 1; k++) {
+				out.writeBits(block.streamLengths[k], 32);
+			}
+			t = stats.add(Stats.HEADER, t);
+			for (int k = 0; k < STREAMS; k++) {
+				block.tree.encode(src, k, STREAMS, out);
+				padToByte(out);
+			}
+		} else {
+			t = stats.add(Stats.HEADER, t);
+			block.tree.encode(src, out);
+		}
+		stats.add(Stats.CODE, t);
+	}
+
+	private static void padToByte(BitWriter out) {
+		out.writeBits(0, (int) (-out.getBitCount() & 7));
+	}
+
+	/**
+	 * Code the characters b[off] to b[off + len - 1] as one block, with its
+	 * payload in a byte array. The arguments are those of plan.
+	 */
+	public static Block encode(byte[] b, int off, int len, int maxLength, boolean context, Stats stats) {
+		ByteBuffer src = ByteBuffer.wrap(b, off, len);
+		Block block = plan(src, maxLength, context, stats);
+		// the exact size is known before coding, so code straight into it
+		block.payload = new byte[block.payloadLength];
+		BitWriter out = new BitWriter(ByteBuffer.wrap(block.payload));
+		encode(block, src, out, stats);
+		out.flush();
+		return block;
+	}
+
+	/**
+	 * Decode the block payload between the position and the limit of payload
+	 * into b[off] to b[off + rawLength - 1], timing the phases into stats,
+	 * which may be Stats.NONE.
+	 */
+	public static void decode(int type, ByteBuffer payload, byte[] b, int off, int rawLength, Stats stats) {
+		Assert.notFalse(type >= TYPE_HUFFMAN && type <= TYPE_RUN, "Unknown block type " + type);
+		long t = Stats.now();
+		if (type == TYPE_STORED) {
+			Assert.notFalse(payload.remaining() >= rawLength, "Damaged block");
+			stats.addHeaderBits(8 * BLOCK_HEADER_SIZE);
+			payload.get(payload.position(), b, off, rawLength);
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		if (type == TYPE_RUN) {
+			Assert.notFalse(payload.remaining() >= 1, "Damaged block");
+			stats.addHeaderBits(8 * BLOCK_HEADER_SIZE);
+			Arrays.fill(b, off, off + rawLength, payload.get(payload.position()));
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		BitReader in = new BitReader(payload, 8L * payload.remaining());
+		if (type == TYPE_CONTEXT) {
+			ContextModel model = ContextModel.read(in);
+			stats.addHeaderBits(8 * BLOCK_HEADER_SIZE + in.getBitsRead());
+			t = stats.add(Stats.TABLE, t);
+			model.decode(in, b, off, rawLength);
+			// bits past the payload read as 0; needing them means damage
+			Assert.notFalse(in.getBitsRead() <= in.getTotalBits(), "Damaged block");
+			stats.add(Stats.CODE, t);
+			return;
+		}
+		HuffTree tree = new HuffTree();
+		tree.readCodeLengths(in);
+		if (type == TYPE_HUFFMAN) {
+			stats.addHeaderBits(8 * BLOCK_HEADER_SIZE + in.getBitsRead());
+			t = stats.add(Stats.TABLE, t);
+			tree.decode(in, b, off, rawLength);
+			Assert.notFalse(in.getBitsRead() <= in.getTotalBits(), "Damaged block");
+			stats.add(Stats.CODE, t);
+			return;
+		}
+
+		in.readBits((int) (-in.getBitsRead() & 7));
+		int[] streamLengths = new int[STREAMS];
+		for (int k = 0; k < STREAMS - 1; k++) {
+			streamLengths[k] = (int) in.readBits(32);
+		}
+		stats.addHeaderBits(8 * BLOCK_HEADER_SIZE + in.getBitsRead());
+		int start = (int) (in.getBitsRead() / 8);
+		ByteBuffer[] streams = new ByteBuffer[STREAMS];
+		for (int k = 0; k < STREAMS; k++) {
+			int length = k < STREAMS - 1 ? streamLengths[k] : payload.remaining() - start;
+			Assert.notFalse(length >= 0 && start + length <= payload.remaining(), "Damaged block");
+			streams[k] = payload.slice(payload.position() + start, length);
+			start += length;
+		}
+		t = stats.add(Stats.TABLE, t);
+		tree.decode(streams, b, off, rawLength);
+		stats.add(Stats.CODE, t);
+	}
+
+	/**
+	 * Write the magic number, the format and the block size.
+	 */
+	public static void writeFileHeader(BitWriter out, int blockSize) {
+		BinaryFile.writeMagic(out, FORMAT_BLOCKS);
+		out.writeBits(blockSize, 32);
+	}
+
+	public static void writeHeader(BitWriter out, Block block) {
+		out.writeBits(block.type, 8);
+		out.writeBits(block.rawLength, 32);
+		out.writeBits(block.payloadLength, 32);
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Canonical Huffman codes. A canonical code is fully determined by the length
+ * of each symbol's code: symbols are ordered by code length and then by
+ * value, and each one gets the next code of its length. Only the lengths
+ * need to be stored, and the decoder rebuilds its tables from them without
+ * ever seeing a tree.
+ */
+public class CanonicalCode {
+
+	public static final int MAX_LENGTH = 63;
+
+	/**
+	 * Assign canonical codes to code lengths.
+	 *
+	 * @param lengths
+	 *            The code length of each symbol, 0 for symbols without a code
+	 * @return The code of each symbol, right-aligned, first bit highest
+	 */
+	public static long[] assign(int[] lengths) {
+		int maxLength = 0;
+		for (int len : lengths) {
+			maxLength = Math.max(maxLength, len);
+		}
+		int[] lengthCount = new int[maxLength + 1];
+		for (int len : lengths) {
+			if (len > 0) {
+				lengthCount[len]++;
+			}
+		}
+		// first code of each length
+		long[] nextCode = new long[maxLength + 1];
+		long code = 0;
+		for (int len = 1; len <= maxLength; len++) {
+			code = (code + lengthCount[len - 1]) << 1;
+			nextCode[len] = code;
+		}
+
+		long[] codes = new long[lengths.length];
+		for (int symbol = 0; symbol < lengths.length; symbol++) {
+			if (lengths[symbol] > 0) {
+				codes[symbol] = nextCode[lengths[symbol]]++;
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * Write the code lengths of a 256 symbol alphabet: the number of symbols
+	 * with a code and the width of the longest length, then for each of those
+	 * symbols in order the gap from the previous one (Elias gamma coded, so
+	 * runs of neighbouring symbols cost a bit each) and its length.
+	 */
+	public static void write(BitWriter out, int[] lengths) {
+		int present = 0;
+		int width = 1;
+		for (int len : lengths) {
+			if (len > 0) {
+				Assert.notFalse(len <= MAX_LENGTH, "Code too long to store");
+				present++;
+				width = Math.max(width, bitWidth(len));
+			}
+		}
+		out.writeBits(present, 9);
+		out.writeBits(width - 1, 3);
+		int previous = -1;
+		for (int symbol = 0; symbol < lengths.length; symbol++) {
+			if (lengths[symbol] > 0) {
+				int gap = symbol - previous;
+				int gapWidth = bitWidth(gap);
+				out.writeBits(0, gapWidth - 1);
+				out.writeBits(gap, gapWidth);
+				out.writeBits(lengths[symbol], width);
+				previous = symbol;
+			}
+		}
+	}
+
+	/**
+	 * Read code lengths written by write.
+	 *
+	 * @return The code length of each of the 256 symbols
+	 */
+	public static int[] read(BitReader in) {
+		int[] lengths = new int[256];
+		int present = (int) in.readBits(9);
+		int width = (int) in.readBits(3) + 1;
+		int symbol = -1;
+		for (int i = 0; i < present; i++) {
+			int zeros = 0;
+			while (!in.readBit()) {
+				zeros++;
+			}
+			int gap = (int) ((1L << zeros) | in.readBits(zeros));
+			symbol += gap;
+			Assert.notFalse(symbol < 256, "Invalid code lengths in compressed file");
+			lengths[symbol] = (int) in.readBits(width);
+		}
+		return lengths;
+	}
+
+	/**
+	 * @return The number of bits write will use for these lengths
+	 */
+	public static long headerBits(int[] lengths) {
+		long bits = 12;
+		int width = 1;
+		int previous = -1;
+		for (int symbol = 0; symbol < lengths.length; symbol++) {
+			if (lengths[symbol] > 0) {
+				width = Math.max(width, bitWidth(lengths[symbol]));
+				bits += 2 * bitWidth(symbol - previous) - 1;
+				previous = symbol;
+			}
+		}
+		for (int len : lengths) {
+			if (len > 0) {
+				bits += width;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return The number of bits needed to code freqs[c] copies of every
+	 *         symbol c with these lengths
+	 */
+	public static long encodedBits(long[] freqs, int[] lengths) {
+		long bits = 0;
+		for (int symbol = 0; symbol < lengths.length; symbol++) {
+			bits += freqs[symbol] * lengths[symbol];
+		}
+		return bits;
+	}
+
+	private static int bitWidth(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A code table trained once on a sample corpus and saved to a file, for
+ * compressing many small files that would otherwise spend more on their code
+ * lengths than on their text. A file compressed with a table stores only the
+ * ID of the table, and skips the counting pass.
+ *
+ * A table file holds the magic number "HT", the table ID and the code
+ * lengths as CanonicalCode writes them. The ID is a CRC-32 of the code
+ * lengths, so the same code always gets the same ID.
+ */
+public class CodeTable {
+
+	/**
+	 * Format byte following the "HF" magic number for files compressed with
+	 * a code table. The 32-bit table ID follows it.
+	 */
+	public static final char FORMAT_TABLE = 'T';
+
+	// tables already loaded, by canonical path of their file
+	private static final ConcurrentHashMap<String, CodeTable> cache = new ConcurrentHashMap<String, CodeTable>();
+
+	private int id;
+	private int[] lengths;
+	private long[] codes;
+	private DecodingTable decodingTable;
+
+	private CodeTable(int[] lengths) {
+		this.lengths = lengths;
+		codes = CanonicalCode.assign(lengths);
+		decodingTable = new DecodingTable(codes, lengths);
+		CRC32 crc = new CRC32();
+		for (int len : lengths) {
+			crc.update(len);
+		}
+		id = (int) crc.getValue();
+	}
+
+	/**
+	 * A table for the given code lengths, such as those of a single file.
+	 */
+	public static CodeTable fromLengths(int[] lengths) {
+		return new CodeTable(lengths);
+	}
+
+	/**
+	 * Build a table from the character counts of a corpus. Every byte value
+	 * gets a code, even those that do not occur in the corpus, so the table
+	 * can code any file.
+	 *
+	 * @param corpus
+	 *            A file, or a directory whose files (and those of its
+	 *            subdirectories) make up the corpus
+	 * @param maxLength
+	 *            The longest code allowed
+	 */
+	public static CodeTable train(String corpus, int maxLength) {
+		ArrayList<File> files = new ArrayList<File>();
+		collectFiles(new File(corpus), files);
+		Assert.notFalse(!files.isEmpty(), "No files to train on in " + corpus);
+		ArrayList<String> names = new ArrayList<String>();
+		for (File file : files) {
+			names.add(file.getPath());
+		}
+		return train(names, maxLength);
+	}
+
+	/**
+	 * Build a table from the character counts of the given files.
+	 */
+	public static CodeTable train(List<String> files, int maxLength) {
+		long[] freqs = new long[256];
+		for (String file : files) {
+			long[] counts = Histogram.count(file);
+			for (int c = 0; c < 256; c++) {
+				freqs[c] += counts[c];
+			}
+		}
+		for (int c = 0; c < 256; c++) {
+			freqs[c]++;
+		}
+		HuffTree tree = new HuffTree(freqs);
+		tree.buildCompressionTree();
+		tree.makeCanonical(maxLength);
+		return new CodeTable(tree.getCodeLengths());
+	}
+
+	private static void collectFiles(File file, ArrayList<File> files) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					collectFiles(child, files);
+				}
+			}
+		} else if (file.isFile()) {
+			files.add(file);
+		}
+	}
+
+	/**
+	 * Save the table to a file.
+	 */
+	public void write(String filename) {
+		BinaryFile file = new BinaryFile(filename, 'w');
+		file.writeChar('H');
+		file.writeChar('T');
+		file.writeBits(id, 32);
+		CanonicalCode.write(file.getWriter(), lengths);
+		file.close();
+	}
+
+	/**
+	 * Load a table from a file. Each table file is read only once; later
+	 * loads return the same table, decoding table included.
+	 */
+	public static CodeTable load(String filename) {
+		String key = filename;
+		try {
+			key = new File(filename).getCanonicalPath();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		CodeTable table = cache.get(key);
+		if (table == null) {
+			table = read(filename);
+			CodeTable previous = cache.putIfAbsent(key, table);
+			if (previous != null) {
+				table = previous;
+			}
+		}
+		return table;
+	}
+
+	private static CodeTable read(String filename) {
+		BinaryFile file = new BinaryFile(filename, 'r');
+		char h = file.readChar();
+		char t = file.readChar();
+		Assert.notFalse(h == 'H' && t == 'T', filename + " is not a code table");
+		int storedId = (int) file.readBits(32);
+		CodeTable table = new CodeTable(CanonicalCode.read(file.getReader()));
+		file.close();
+		Assert.notFalse(table.id == storedId, "Damaged code table " + filename);
+		return table;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int[] getCodeLengths() {
+		return lengths;
+	}
+
+	public long[] getCodes() {
+		return codes;
+	}
+
+	public DecodingTable getDecodingTable() {
+		return decodingTable;
+	}
+}
@@ -0,0 +1,438 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An order-1 context model: the code for each character depends on the
+ * character before it. Storing a code for each of the 256 previous
+ * characters would cost more than it saves, so the contexts are grouped into
+ * at most MAX_CLUSTERS clusters of contexts whose next characters look alike,
+ * and each cluster gets one canonical code.
+ *
+ * Clusters are built greedily. The SEEDS most frequent contexts start as
+ * clusters of their own and all other contexts as one more cluster; then the
+ * two clusters whose merging costs the fewest bits (estimated from the
+ * entropy of their counts and the size of their code lengths) are merged
+ * for as long as that saves bits or there are too many clusters.
+ *
+ * The model is stored as the number of clusters less one (4 bits), the
+ * cluster of each of the 256 contexts (just wide enough for the number of
+ * clusters) and the code lengths of each cluster. The first character of a
+ * text has the context 0.
+ */
+public class ContextModel {
+
+	public static final int MAX_CLUSTERS = 16;
+
+	/** Contexts that start as clusters of their own */
+	private static final int SEEDS = 32;
+
+	private int clusters;
+	// cluster of each context
+	private int[] map = new int[256];
+	private int[][] lengths;
+	private long[][] codes;
+	// bits the code length limit added, as HuffTree.getLimitCost
+	private long limitCost;
+
+	/* Built by buildDecoder, for decode */
+	private DecodingTable[] tables;
+	// the multi-symbol tables of all clusters, MULTI_BITS of index each
+	private int[] multi;
+	// offset of the multi-symbol table of each context's cluster
+	private int[] base;
+	// for each multi-symbol entry, base of the last character it decodes
+	private int[] next;
+
+	private ContextModel() {
+	}
+
+	/**
+	 * Build the model for the pair counts of a text.
+	 *
+	 * @param pairs
+	 *            The number of times character c follows character p, at
+	 *            pairs[p * 256 + c], as Histogram.countPairs counts them
+	 * @param maxLength
+	 *            The longest code allowed
+	 */
+	public static ContextModel build(int[] pairs, int maxLength) {
+		long[] totals = new long[256];
+		for (int p = 0; p < 256; p++) {
+			for (int c = 0; c < 256; c++) {
+				totals[p] += pairs[p * 256 + c];
+			}
+		}
+		// contexts that occur, most frequent first
+		int[] order = new int[256];
+		int used = 0;
+		for (int p = 0; p < 256; p++) {
+			if (totals[p] > 0) {
+				order[used++] = p;
+			}
+		}
+		for (int i = 1; i < used; i++) {
+			int p = order[i];
+			int j = i;
+			while (j > 0 && totals[order[j - 1]] < totals[p]) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = p;
+		}
+
+		int count = Math.min(used, SEEDS + 1);
+		long[][] freqs = new long[Math.max(count, 1)][256];
+		int[] map = new int[256];
+		for (int i = 0; i < used; i++) {
+			int p = order[i];
+			int k = Math.min(i, SEEDS);
+			map[p] = k;
+			for (int c = 0; c < 256; c++) {
+				freqs[k][c] += pairs[p * 256 + c];
+			}
+		}
+
+		// merge clusters, keeping the cost of every pair of them
+		double[] cost = new double[count];
+		for (int k = 0; k < count; k++) {
+			cost[k] = bits(freqs[k], null);
+		}
+		double[][] mergeCost = new double[count][count];
+		for (int a = 0; a < count; a++) {
+			for (int b = a + 1; b < count; b++) {
+				mergeCost[a][b] = bits(freqs[a], freqs[b]) - cost[a] - cost[b];
+			}
+		}
+		boolean[] gone = new boolean[count];
+		int left = count;
+		while (left > 1) {
+			int bestA = -1;
+			int bestB = -1;
+			for (int a = 0; a < count; a++) {
+				for (int b = a + 1; b < count; b++) {
+					if (!gone[a] && !gone[b] && (bestA < 0 || mergeCost[a][b] < mergeCost[bestA][bestB])) {
+						bestA = a;
+						bestB = b;
+					}
+				}
+			}
+			if (mergeCost[bestA][bestB] >= 0 && left <= MAX_CLUSTERS) {
+				break;
+			}
+			for (int c = 0; c < 256; c++) {
+				freqs[bestA][c] += freqs[bestB][c];
+			}
+			for (int p = 0; p < 256; p++) {
+				if (map[p] == bestB) {
+					map[p] = bestA;
+				}
+			}
+			gone[bestB] = true;
+			left--;
+			cost[bestA] = bits(freqs[bestA], null);
+			for (int k = 0; k < count; k++) {
+				if (k != bestA && !gone[k]) {
+					int a = Math.min(k, bestA);
+					int b = Math.max(k, bestA);
+					mergeCost[a][b] = bits(freqs[a], freqs[b]) - cost[a] - cost[b];
+				}
+			}
+		}
+
+		// number the clusters that are left from 0
+		ContextModel model = new ContextModel();
+		int[] number = new int[Math.max(count, 1)];
+		for (int k = 0; k < count; k++) {
+			if (!gone[k]) {
+				number[k] = model.clusters++;
+			}
+		}
+		model.clusters = Math.max(model.clusters, 1);
+		for (int p = 0; p < 256; p++) {
+			model.map[p] = number[map[p]];
+		}
+		model.lengths = new int[model.clusters][];
+		model.codes = new long[model.clusters][];
+		for (int k = 0; k < count; k++) {
+			if (!gone[k]) {
+				HuffTree tree = new HuffTree(freqs[k]);
+				tree.buildCompressionTree();
+				tree.makeCanonical(maxLength);
+				model.lengths[number[k]] = tree.getCodeLengths();
+				model.codes[number[k]] = tree.getCodes();
+				model.limitCost += tree.getLimitCost();
+			}
+		}
+		if (count == 0) {
+			// an empty text
+			model.lengths[0] = new int[256];
+			model.codes[0] = new long[256];
+		}
+		return model;
+	}
+
+	/**
+	 * Estimate the bits to code the text counted by a (plus b, if not null)
+	 * with one code: its entropy, and about 7 bits of code lengths for every
+	 * character that occurs.
+	 */
+	private static double bits(long[] a, long[] b) {
+		double total = 0;
+		double sum = 0;
+		int present = 0;
+		for (int c = 0; c < 256; c++) {
+			long f = b == null ? a[c] : a[c] + b[c];
+			if (f > 0) {
+				total += f;
+				sum += f * Math.log(f);
+				present++;
+			}
+		}
+		if (present == 0) {
+			return 0;
+		}
+		return (total * Math.log(total) - sum) / Math.log(2) + 12 + 7 * present;
+	}
+
+	public int getClusters() {
+		return clusters;
+	}
+
+	public long getLimitCost() {
+		return limitCost;
+	}
+
+	/**
+	 * @return The number of bits write will use for the model
+	 */
+	public long headerBits() {
+		long bits = 4 + 256L * mapWidth();
+		for (int k = 0; k < clusters; k++) {
+			bits += CanonicalCode.headerBits(lengths[k]);
+		}
+		return bits;
+	}
+
+	/**
+	 * @return The number of bits needed to code the text with these pair
+	 *         counts
+	 */
+	public long encodedBits(int[] pairs) {
+		long bits = 0;
+		for (int p = 0; p < 256; p++) {
+			int[] len = lengths[map[p]];
+			for (int c = 0; c < 256; c++) {
+				bits += (long) pairs[p * 256 + c] * len[c];
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return The order-0 character counts of the text with these pair counts
+	 */
+	public static long[] freqs(int[] pairs) {
+		long[] freqs = new long[256];
+		for (int i = 0; i < pairs.length; i++) {
+			freqs[i & 0xFF] += pairs[i];
+		}
+		return freqs;
+	}
+
+	private int mapWidth() {
+		return 32 - Integer.numberOfLeadingZeros(clusters - 1);
+	}
+
+	public void write(BitWriter out) {
+		out.writeBits(clusters - 1, 4);
+		int width = mapWidth();
+		for (int p = 0; p < 256; p++) {
+			out.writeBits(map[p], width);
+		}
+		for (int k = 0; k < clusters; k++) {
+			CanonicalCode.write(out, lengths[k]);
+		}
+	}
+
+	/**
+	 * Read a model written by write, with its decoding tables built.
+	 */
+	public static ContextModel read(BitReader in) {
+		ContextModel model = new ContextModel();
+		model.clusters = (int) in.readBits(4) + 1;
+		int width = model.mapWidth();
+		for (int p = 0; p < 256; p++) {
+			model.map[p] = (int) in.readBits(width);
+			Assert.notFalse(model.map[p] < model.clusters, "Invalid context map in compressed file");
+		}
+		model.lengths = new int[model.clusters][];
+		model.codes = new long[model.clusters][];
+		for (int k = 0; k < model.clusters; k++) {
+			model.lengths[k] = CanonicalCode.read(in);
+			model.codes[k] = CanonicalCode.assign(model.lengths[k]);
+		}
+		model.buildDecoder();
+		return model;
+	}
+
+	/**
+	 * Write the codes for the characters between the position and the limit
+	 * of b, without moving the position. The codes of all clusters are laid
+	 * out in one array, so the code of a character is one load away from the
+	 * offset of its context's cluster.
+	 */
+	public void encode(ByteBuffer b, BitWriter out) {
+		long[] allCodes = new long[clusters * 256];
+		int[] allLengths = new int[clusters * 256];
+		for (int k = 0; k < clusters; k++) {
+			System.arraycopy(codes[k], 0, allCodes, k * 256, 256);
+			System.arraycopy(lengths[k], 0, allLengths, k * 256, 256);
+		}
+		int[] base = new int[256];
+		for (int p = 0; p < 256; p++) {
+			base[p] = map[p] * 256;
+		}
+		int previous = 0;
+		if (b.hasArray()) {
+			byte[] a = b.array();
+			int end = b.arrayOffset() + b.limit();
+			for (int i = b.arrayOffset() + b.position(); i < end; i++) {
+				int c = a[i] & 0xFF;
+				int code = base[previous] + c;
+				out.writeBits(allCodes[code], allLengths[code]);
+				previous = c;
+			}
+			return;
+		}
+		for (int i = b.position(); i < b.limit(); i++) {
+			int c = b.get(i) & 0xFF;
+			int code = base[previous] + c;
+			out.writeBits(allCodes[code], allLengths[code]);
+			previous = c;
+		}
+	}
+
+	/**
+	 * Build the tables decode uses, once per model.
+	 *
+	 * The next character's code depends on the one before it, so every
+	 * character waits for the last; to make fewer of those steps, each
+	 * cluster has a table like the multi-symbol table of DecodingTable,
+	 * indexed by the next DecodingTable.MULTI_BITS bits. Its entries decode
+	 * up to DecodingTable.MAX_SYMBOLS characters, each with the code of the
+	 * cluster of the character before it, and are in the same form as
+	 * DecodingTable.lookupMulti entries. The tables of all clusters are laid
+	 * out in one array, and every context keeps the offset of its cluster's
+	 * table; next holds, for every entry, the offset for the context its last
+	 * character makes, so the next lookup does not wait for the character to
+	 * be picked out of the entry. The DecodingTable of each cluster is built
+	 * without a multi-symbol table of its own; it serves the last few
+	 * characters and codes longer than DecodingTable.TABLE_BITS.
+	 */
+	private void buildDecoder() {
+		int tableBits = DecodingTable.TABLE_BITS;
+		int multiBits = DecodingTable.MULTI_BITS;
+		tables = new DecodingTable[clusters];
+		for (int k = 0; k < clusters; k++) {
+			tables[k] = new DecodingTable(codes[k], lengths[k], false);
+		}
+		int mask = (1 << multiBits) - 1;
+		multi = new int[clusters << multiBits];
+		for (int k = 0; k < clusters; k++) {
+			for (int bits = 0; bits <= mask; bits++) {
+				int used = 0;
+				int count = 0;
+				int symbols = 0;
+				int cluster = k;
+				while (count < DecodingTable.MAX_SYMBOLS) {
+					int entry = tables[cluster].lookup(((bits << used) & mask) >>> (multiBits - tableBits));
+					int length = DecodingTable.length(entry);
+					if (length == 0 || used + length > multiBits) {
+						break;
+					}
+					int c = DecodingTable.symbol(entry);
+					symbols |= c << (8 * count);
+					used += length;
+					count++;
+					cluster = map[c];
+				}
+				multi[(k << multiBits) + bits] = count == 0 ? 0 : (used << 26) | (count << 24) | symbols;
+			}
+		}
+		base = new int[256];
+		for (int p = 0; p < 256; p++) {
+			base[p] = map[p] << multiBits;
+		}
+		next = new int[multi.length];
+		for (int e = 0; e < multi.length; e++) {
+			int count = DecodingTable.count(multi[e]);
+			if (count > 0) {
+				next[e] = base[(multi[e] >>> (8 * count - 8)) & 0xFF];
+			}
+		}
+	}
+
+	/**
+	 * Decode len characters into b[off] to b[off + len - 1], with the
+	 * tables of buildDecoder.
+	 */
+	public void decode(BitReader in, byte[] b, int off, int len) {
+		if (tables == null) {
+			// a model that was built rather than read
+			buildDecoder();
+		}
+		int tableBits = DecodingTable.TABLE_BITS;
+		int multiBits = DecodingTable.MULTI_BITS;
+		DecodingTable[] tables = this.tables;
+		int[] multi = this.multi;
+		int[] base = this.base;
+		int[] next = this.next;
+		int[] map = this.map;
+
+		// offset of the table for the context, which next gives straight
+		// from the entry, without waiting for the character
+		int at = base[0];
+		int i = off;
+		// an entry may decode past what is wanted, so stop MAX_SYMBOLS early
+		int multiEnd = off + len - DecodingTable.MAX_SYMBOLS;
+		while (i <= multiEnd) {
+			int index = at + (int) in.peekBits(multiBits);
+			int entry = multi[index];
+			if (entry == 0) {
+				int c = decodeLong(in, tables[at >>> multiBits]);
+				b[i++] = (byte) c;
+				at = base[c];
+				continue;
+			}
+			at = next[index];
+			in.skipBits(DecodingTable.multiLength(entry));
+			// write all three; only count of them are kept
+			b[i] = (byte) entry;
+			b[i + 1] = (byte) (entry >>> 8);
+			b[i + 2] = (byte) (entry >>> 16);
+			i += DecodingTable.count(entry);
+		}
+		int previous = i > off ? b[i - 1] & 0xFF : 0;
+		for (; i < off + len; i++) {
+			DecodingTable table = tables[map[previous]];
+			int entry = table.lookup((int) in.peekBits(tableBits));
+			if (DecodingTable.length(entry) != 0) {
+				in.skipBits(DecodingTable.length(entry));
+				previous = DecodingTable.symbol(entry);
+			} else {
+				previous = decodeLong(in, table);
+			}
+			b[i] = (byte) previous;
+		}
+	}
+
+	/**
+	 * Decode a code longer than the table, bit by bit.
+	 */
+	private static int decodeLong(BitReader in, DecodingTable table) {
+		int node = 0;
+		do {
+			node = table.child(node, in.readBit());
+		} while (node > 0);
+		return -node - 1;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Lookup table for decoding a prefix code several bits at a time. The next
+ * TABLE_BITS bits of input index straight into an entry that holds both the
+ * decoded symbol and the length of its code, so a symbol costs one array
+ * access instead of one lookup per bit. Codes longer than TABLE_BITS are
+ * marked with an empty entry and decoded by walking a binary trie of every
+ * code one bit at a time.
+ *
+ * When two or more codes fit in MULTI_BITS bits, a second table decodes
+ * several short codes per lookup: its entries hold every complete code, up
+ * to MAX_SYMBOLS of them, that the next MULTI_BITS bits of input start with.
+ */
+public class DecodingTable {
+
+	public static final int TABLE_BITS = 10;
+
+	public static final int MULTI_BITS = 12;
+	public static final int MAX_SYMBOLS = 3;
+
+	// (symbol << 8) | length, or 0 where the code is longer than TABLE_BITS
+	private int[] entries;
+	// children of node n at 2n and 2n + 1: 0 = none, > 0 = internal node,
+	// < 0 = leaf holding -(symbol + 1)
+	private int[] trie;
+	private int nodes;
+	// (length << 26) | (count << 24) | symbols, first symbol lowest, or 0
+	// where the first code is longer than TABLE_BITS. null when no two codes
+	// fit in MULTI_BITS.
+	private int[] multi;
+
+	/**
+	 * Build the table for a prefix code.
+	 *
+	 * @param codes
+	 *            The code of each symbol, right-aligned, first bit highest
+	 * @param lengths
+	 *            The length of each symbol's code, 0 for symbols without a
+	 *            code
+	 */
+	public DecodingTable(long[] codes, int[] lengths) {
+		this(codes, lengths, true);
+	}
+
+	/**
+	 * Build the table for a prefix code, with the multi-symbol table only if
+	 * multi is true and two codes fit in MULTI_BITS.
+	 */
+	public DecodingTable(long[] codes, int[] lengths, boolean multi) {
+		entries = new int[1 << TABLE_BITS];
+		trie = new int[64];
+		nodes = 1;
+		for (int symbol = 0; symbol < lengths.length; symbol++) {
+			int len = lengths[symbol];
+			if (len == 0) {
+				continue;
+			}
+			Assert.notFalse(len < 64, "Code too long to decode");
+			addToTrie(symbol, codes[symbol], len);
+			if (len <= TABLE_BITS) {
+				// every index that starts with this code decodes to it
+				int first = (int) codes[symbol] << (TABLE_BITS - len);
+				int count = 1 << (TABLE_BITS - len);
+				for (int i = first; i < first + count; i++) {
+					entries[i] = (symbol << 8) | len;
+				}
+			}
+		}
+		if (multi && shortest(lengths) <= MULTI_BITS / 2) {
+			buildMulti();
+		}
+	}
+
+	private static int shortest(int[] lengths) {
+		int shortest = Integer.MAX_VALUE;
+		for (int len : lengths) {
+			if (len > 0) {
+				shortest = Math.min(shortest, len);
+			}
+		}
+		return shortest;
+	}
+
+	/**
+	 * Decode every MULTI_BITS bit index greedily with the single symbol
+	 * table, for as long as the next code is complete within the index. The
+	 * constructor does this only when two codes can fit; call it to have
+	 * lookupMulti even when most entries will hold a single symbol.
+	 */
+	public void buildMulti() {
+		if (multi != null) {
+			return;
+		}
+		int[] multi = new int[1 << MULTI_BITS];
+		int mask = (1 << MULTI_BITS) - 1;
+		for (int bits = 0; bits <= mask; bits++) {
+			int used = 0;
+			int count = 0;
+			int symbols = 0;
+			while (count < MAX_SYMBOLS) {
+				int entry = entries[((bits << used) & mask) >>> (MULTI_BITS - TABLE_BITS)];
+				int len = length(entry);
+				if (len == 0 || used + len > MULTI_BITS) {
+					break;
+				}
+				symbols |= symbol(entry) << (8 * count);
+				used += len;
+				count++;
+			}
+			multi[bits] = count == 0 ? 0 : (used << 26) | (count << 24) | symbols;
+		}
+		this.multi = multi;
+	}
+
+	private void addToTrie(int symbol, long code, int len) {
+		int node = 0;
+		for (int i = len - 1; i > 0; i--) {
+			int slot = 2 * node + (int) ((code >>> i) & 1);
+			if (trie[slot] == 0) {
+				if (2 * nodes + 1 >= trie.length) {
+					int[] grown = new int[trie.length * 2];
+					System.arraycopy(trie, 0, grown, 0, trie.length);
+					trie = grown;
+				}
+				trie[slot] = nodes++;
+			}
+			node = trie[slot];
+		}
+		trie[2 * node + (int) (code & 1)] = -(symbol + 1);
+	}
+
+	/**
+	 * @param bits
+	 *            The next TABLE_BITS bits of input, first bit highest
+	 * @return The table entry for those bits, 0 if they start a code longer
+	 *         than TABLE_BITS
+	 */
+	public int lookup(int bits) {
+		return entries[bits];
+	}
+
+	/**
+	 * Decode the code at the top of bits through the trie, for a code longer
+	 * than TABLE_BITS.
+	 *
+	 * @param bits
+	 *            The next bits of input, left-aligned: bit 63 is the first,
+	 *            and at least as many bits as the code is long are valid
+	 * @return A table entry for the code, as lookup returns
+	 */
+	public int lookupLong(long bits) {
+		int node = 0;
+		int len = 0;
+		do {
+			node = child(node, bits < 0);
+			bits <<= 1;
+			len++;
+		} while (node > 0);
+		return ((-node - 1) << 8) | len;
+	}
+
+	/**
+	 * @return Whether lookupMulti can be used
+	 */
+	public boolean hasMulti() {
+		return multi != null;
+	}
+
+	/**
+	 * @param bits
+	 *            The next MULTI_BITS bits of input, first bit highest
+	 * @return The multi-symbol entry for those bits, 0 if they start a code
+	 *         longer than TABLE_BITS
+	 */
+	public int lookupMulti(int bits) {
+		return multi[bits];
+	}
+
+	/**
+	 * @return The number of symbols in a multi-symbol entry
+	 */
+	public static int count(int multiEntry) {
+		return (multiEntry >>> 24) & 3;
+	}
+
+	/**
+	 * @return The total length of the codes in a multi-symbol entry
+	 */
+	public static int multiLength(int multiEntry) {
+		return multiEntry >>> 26;
+	}
+
+	public static int symbol(int entry) {
+		return entry >>> 8;
+	}
+
+	public static int length(int entry) {
+		return entry & 0xFF;
+	}
+
+	/**
+	 * Step through the trie used for codes longer than TABLE_BITS. Start at
+	 * node 0 with the first bit of the code.
+	 *
+	 * @return The next internal node, or -(symbol + 1) once a code is complete
+	 */
+	public int child(int node, boolean bit) {
+		int next = trie[2 * node + (bit ? 1 : 0)];
+		Assert.notFalse(next != 0, "Invalid code in compressed file");
+		return next;
+	}
+}
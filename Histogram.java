@@ -0,0 +1,321 @@
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts how often each byte value occurs in a file. The file is split into
+ * chunks of CHUNK_SIZE bytes that are counted in parallel on a ForkJoinPool,
+ * each into its own long[256], and the per-chunk counts are summed as the
+ * tasks are joined.
+ *
+ * Within a chunk, bytes are read eight at a time, and each of the eight is
+ * counted into a table of its own; the SUB_TABLES tables are added up at
+ * the end. With a single table, a byte value that repeats makes every
+ * increment wait for the one before it to be stored; spread over several
+ * tables, the increments of nearby equal bytes go to different counters.
+ * Eight bytes that are all the same, as in runs of spaces or zeros, are
+ * counted with a single add.
+ *
+ * This is not faster everywhere. On uniform random bytes, where nearby bytes
+ * rarely repeat, a plain single-table loop is faster (about 2700 against
+ * 2200 MiB/s in HistogramBenchmark), and on generated text the two are about
+ * even. The sub-tables pay off on skewed input and runs, where the single
+ * table drops to 400-900 MiB/s and this stays above 2000.
+ */
+public class Histogram {
+
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	/** Number of count tables a chunk is counted into */
+	public static final int SUB_TABLES = 8;
+
+	// eight bytes of a byte[] at once; the byte order does not matter here
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	// 0x01 in every byte: a byte value times this fills all eight bytes
+	private static final long ONES = 0x0101010101010101L;
+
+	private static final ThreadLocal<ByteBuffer> chunkBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(CHUNK_SIZE);
+		}
+	};
+
+	/**
+	 * Count the bytes of a file on the common ForkJoinPool.
+	 *
+	 * @param filename
+	 *            The file to count
+	 * @return The number of times each byte value 0-255 occurs
+	 */
+	public static long[] count(String filename) {
+		return count(filename, ForkJoinPool.commonPool());
+	}
+
+	public static long[] count(String filename, ForkJoinPool pool) {
+		long[] counts = new long[256];
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			counts = pool.invoke(new CountTask(channel, 0, channel.size()));
+			file.close();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		return counts;
+	}
+
+	/**
+	 * Estimate the byte counts of a file from the given number of evenly
+	 * spaced chunks of CHUNK_SIZE bytes, counted in parallel on the common
+	 * ForkJoinPool. The sampled counts are scaled up to the length of the
+	 * file, and every byte value gets at least a count of 1, so that even
+	 * values the sample missed get a code. If the chunks would cover the
+	 * whole file, it is counted exactly instead.
+	 *
+	 * @param filename
+	 *            The file to sample
+	 * @param chunks
+	 *            The number of chunks to read, at least 1
+	 * @return The estimated number of times each byte value 0-255 occurs
+	 */
+	public static long[] sample(String filename, int chunks) {
+		long[] counts = new long[256];
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if ((long) chunks * CHUNK_SIZE >= length) {
+				file.close();
+				return count(filename);
+			}
+			CountTask[] tasks = new CountTask[chunks];
+			for (int i = 0; i < chunks; i++) {
+				long start = chunks == 1 ? (length - CHUNK_SIZE) / 2
+						: (length - CHUNK_SIZE) / (chunks - 1) * i;
+				tasks[i] = new CountTask(channel, start, start + CHUNK_SIZE);
+				ForkJoinPool.commonPool().execute(tasks[i]);
+			}
+			long sampled = 0;
+			for (CountTask task : tasks) {
+				long[] chunkCounts = task.join();
+				for (int c = 0; c < 256; c++) {
+					counts[c] += chunkCounts[c];
+					sampled += chunkCounts[c];
+				}
+			}
+			file.close();
+			double scale = (double) length / sampled;
+			for (int c = 0; c < 256; c++) {
+				counts[c] = Math.max(1, Math.round(counts[c] * scale));
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		return counts;
+	}
+
+	/**
+	 * Count the bytes b[off] to b[off + len - 1] on the calling thread.
+	 */
+	public static long[] count(byte[] b, int off, int len) {
+		int[] tables = new int[SUB_TABLES * 256];
+		long[] runs = new long[256];
+		int i = off;
+		for (int end = off + len - 8; i <= end; i += 8) {
+			countWord((long) LONGS.get(b, i), tables, runs);
+		}
+		for (; i < off + len; i++) {
+			tables[b[i] & 0xFF]++;
+		}
+		return merge(tables, runs);
+	}
+
+	/**
+	 * Count the bytes between the position and the limit of b on the calling
+	 * thread, without moving the position.
+	 */
+	public static long[] count(ByteBuffer b) {
+		if (b.hasArray()) {
+			return count(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		}
+		int[] tables = new int[SUB_TABLES * 256];
+		long[] runs = new long[256];
+		int i = b.position();
+		for (int end = b.limit() - 8; i <= end; i += 8) {
+			countWord(b.getLong(i), tables, runs);
+		}
+		for (; i < b.limit(); i++) {
+			tables[b.get(i) & 0xFF]++;
+		}
+		return merge(tables, runs);
+	}
+
+	/**
+	 * Count the eight bytes of w, each into a sub-table of its own, or into
+	 * runs if they are all the same.
+	 */
+	private static void countWord(long w, int[] tables, long[] runs) {
+		int first = (int) w & 0xFF;
+		if (w == first * ONES) {
+			runs[first] += 8;
+			return;
+		}
+		tables[first]++;
+		tables[256 + ((int) (w >>> 8) & 0xFF)]++;
+		tables[512 + ((int) (w >>> 16) & 0xFF)]++;
+		tables[768 + ((int) (w >>> 24) & 0xFF)]++;
+		tables[1024 + ((int) (w >>> 32) & 0xFF)]++;
+		tables[1280 + ((int) (w >>> 40) & 0xFF)]++;
+		tables[1536 + ((int) (w >>> 48) & 0xFF)]++;
+		tables[1792 + (int) (w >>> 56)]++;
+	}
+
+	/**
+	 * Add up the sub-tables and the runs. No sub-table counts more than an
+	 * eighth of the bytes (and a few of the last), so their int counters
+	 * cannot overflow.
+	 */
+	private static long[] merge(int[] tables, long[] runs) {
+		long[] counts = runs;
+		for (int t = 0; t < SUB_TABLES; t++) {
+			for (int c = 0; c < 256; c++) {
+				counts[c] += tables[t * 256 + c];
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Count the bytes between the position and the limit of b separately for
+	 * each of the given number of interleaved streams: stream k holds the
+	 * bytes at k, k + streams, k + 2 * streams, ... from the position. The
+	 * position does not move.
+	 *
+	 * When streams divides SUB_TABLES, this counts eight bytes at a time as
+	 * count does: byte j of every word goes to sub-table j, which belongs to
+	 * stream j % streams, and a word of eight equal bytes adds
+	 * SUB_TABLES / streams to that byte in every stream.
+	 *
+	 * @return The counts of each stream
+	 */
+	public static long[][] count(ByteBuffer b, int streams) {
+		long[][] counts = new long[streams][256];
+		int start = b.position();
+		if (SUB_TABLES % streams != 0) {
+			for (int i = start; i < b.limit(); i++) {
+				counts[(i - start) % streams][b.get(i) & 0xFF]++;
+			}
+			return counts;
+		}
+		int[] tables = new int[SUB_TABLES * 256];
+		long[] runs = new long[256];
+		int i = start;
+		if (b.hasArray()) {
+			byte[] a = b.array();
+			int offset = b.arrayOffset();
+			for (int end = b.limit() - 8; i <= end; i += 8) {
+				countWord((long) LONGS.get(a, offset + i), tables, runs);
+			}
+		} else {
+			// lane j of a word must be the j-th byte
+			ByteBuffer words = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			for (int end = b.limit() - 8; i <= end; i += 8) {
+				countWord(words.getLong(i), tables, runs);
+			}
+		}
+		// the last, partial word, lane by lane
+		for (; i < b.limit(); i++) {
+			tables[((i - start) & (SUB_TABLES - 1)) * 256 + (b.get(i) & 0xFF)]++;
+		}
+		for (int t = 0; t < SUB_TABLES; t++) {
+			long[] stream = counts[t % streams];
+			for (int c = 0; c < 256; c++) {
+				stream[c] += tables[t * 256 + c];
+			}
+		}
+		for (int c = 0; c < 256; c++) {
+			if (runs[c] != 0) {
+				for (int k = 0; k < streams; k++) {
+					counts[k][c] += runs[c] / streams;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Count the pairs of neighbouring bytes between the position and the
+	 * limit of b, without moving the position. The first byte counts as
+	 * following a 0.
+	 *
+	 * @return The number of times byte c follows byte p, at p * 256 + c
+	 */
+	public static int[] countPairs(ByteBuffer b) {
+		int[] pairs = new int[256 * 256];
+		int previous = 0;
+		for (int i = b.position(); i < b.limit(); i++) {
+			int c = b.get(i) & 0xFF;
+			pairs[previous << 8 | c]++;
+			previous = c;
+		}
+		return pairs;
+	}
+
+	private static class CountTask extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private FileChannel channel;
+		private long start;
+		private long end;
+
+		public CountTask(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (end - start > CHUNK_SIZE) {
+				// split on a chunk boundary so every leaf reads whole chunks
+				long chunks = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+				long mid = start + (chunks / 2) * CHUNK_SIZE;
+				CountTask left = new CountTask(channel, start, mid);
+				left.fork();
+				long[] counts = new CountTask(channel, mid, end).compute();
+				long[] leftCounts = left.join();
+				for (int i = 0; i < 256; i++) {
+					counts[i] += leftCounts[i];
+				}
+				return counts;
+			}
+
+			ByteBuffer buffer = chunkBuffer.get();
+			buffer.clear();
+			buffer.limit((int) (end - start));
+			try {
+				// positional reads are safe to issue from several threads
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, start + buffer.position()) < 0) {
+						break;
+					}
+				}
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				System.exit(0);
+			}
+			return count(buffer.array(), 0, buffer.position());
+		}
+	}
+}
@@ -1,345 +1,853 @@
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class HuffTree {
 
-	private Node root;
-	private Map<Character, Integer> freqs;
-	private ArrayList<Character> keys = new ArrayList<Character>();
-	private Map<Character, ArrayList<Integer>> encodingTable;
-	private Map<String, Character> decodingTable;
-	private long size;
-	private StringBuilder sb;
+	/**
+	 * Format byte following the "HF" magic number for files that store
+	 * canonical code lengths. Older files store their padding count (0-7)
+	 * there instead, followed by the serialized tree.
+	 */
+	public static final char FORMAT_CANONICAL = 'C';
+
+	// Nodes live in parallel arrays. left and right hold node indexes, -1
+	// for none, and symbol holds the character of a leaf, -1 for internal
+	// nodes. Children always have lower indexes than their parents in a
+	// compression tree, and higher indexes in every other tree.
+	private long[] nodeFreq;
+	private int[] left;
+	private int[] right;
+	private int[] symbol;
+	private int nodeCount;
+	private int root = -1;
+
+	private long[] freqs;
+	private DecodingTable decodingTable;
+	private long[] codes;
+	private int[] lengths;
+	private long limitCost;
 
 	// compression
-	public HuffTree(Map<Character, Integer> freqs) {
+	public HuffTree(long[] freqs) {
 		this.freqs = freqs;
-		Object[] keyArray = freqs.keySet().toArray();
-		for (Object o : keyArray) {
-			keys.add((Character) o);
-		}
 	}
 
 	// decompression
 	public HuffTree() {
 	}
 
-	private class Node implements Comparable {
-		public Character ch;
-		public Integer freq;
-		public Node left;
-		public Node right;
+	// coding with a pre-trained table
+	public HuffTree(CodeTable table) {
+		lengths = table.getCodeLengths();
+		codes = table.getCodes();
+		decodingTable = table.getDecodingTable();
+	}
 
-		public Node() {
-		}
+	private void clearNodes(int capacity) {
+		nodeFreq = new long[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		symbol = new int[capacity];
+		nodeCount = 0;
+		root = -1;
+	}
 
-		public Node(Character ch) {
-			this.ch = ch;
+	private int newNode(int sym, long freq) {
+		if (nodeCount == symbol.length) {
+			int capacity = 2 * nodeCount;
+			nodeFreq = Arrays.copyOf(nodeFreq, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			symbol = Arrays.copyOf(symbol, capacity);
 		}
+		nodeFreq[nodeCount] = freq;
+		left[nodeCount] = -1;
+		right[nodeCount] = -1;
+		symbol[nodeCount] = sym;
+		return nodeCount++;
+	}
+
+	/* Compression */
 
-		public Node(Character ch, Integer freq) {
-			this.ch = ch;
-			this.freq = freq;
+	/**
+	 * Build the tree with the two-queue method: the leaves are sorted by
+	 * frequency once, and since every merged node is at least as heavy as
+	 * the one merged before it, merged nodes come out of a second queue
+	 * already in order. The two lightest nodes are always at the front of
+	 * one of the queues.
+	 */
+	public void buildCompressionTree() {
+		int n = 0;
+		for (long f : freqs) {
+			if (f > 0) {
+				n++;
+			}
+		}
+		clearNodes(Math.max(1, 2 * n));
+		if (n == 0) {
+			return;
 		}
 
-		@Override
-		public int compareTo(Object o) {
+		// sort the leaves by frequency, then by character
+		long[] keys = new long[n];
+		int k = 0;
+		for (int c = 0; c < freqs.length; c++) {
+			if (freqs[c] > 0) {
+				Assert.notFalse(freqs[c] < (1L << 55), "Frequency too large");
+				keys[k++] = (freqs[c] << 8) | c;
+			}
+		}
+		Arrays.sort(keys);
+		for (long key : keys) {
+			newNode((int) (key & 0xFF), key >>> 8);
+		}
 
-			Node n = (Node) o;
+		if (n == 1) {
+			// a lone character still needs a one bit code
+			root = newNode(-1, nodeFreq[0]);
+			left[root] = 0;
+			return;
+		}
 
-			// lowest to highest
-			if (n.freq < this.freq) {
-				return 1;
-			} else if (n.freq > this.freq) {
-				return -1;
+		int nextLeaf = 0;
+		int nextMerged = n;
+		while (nodeCount < 2 * n - 1) {
+			int a;
+			if (nextLeaf < n && (nextMerged == nodeCount || nodeFreq[nextLeaf] <= nodeFreq[nextMerged])) {
+				a = nextLeaf++;
+			} else {
+				a = nextMerged++;
+			}
+			int b;
+			if (nextLeaf < n && (nextMerged == nodeCount || nodeFreq[nextLeaf] <= nodeFreq[nextMerged])) {
+				b = nextLeaf++;
 			} else {
-				return 0;
+				b = nextMerged++;
 			}
+			int node = newNode(-1, nodeFreq[a] + nodeFreq[b]);
+			left[node] = a;
+			right[node] = b;
 		}
+		root = nodeCount - 1;
 	}
 
-	/* Compression */
+	/**
+	 * Replace the codes of the compression tree with canonical codes of the
+	 * same lengths. The codes and their lengths are kept in arrays indexed by
+	 * character for the encoder. The tree itself is rebuilt from the codes
+	 * only if it is printed.
+	 */
+	public void makeCanonical() {
+		makeCanonical(CanonicalCode.MAX_LENGTH);
+	}
 
-	public void buildCompressionTree() {
-		ArrayList<Node> nodes = new ArrayList<Node>();
-		for (Character c : keys) {
-			nodes.add(new Node(c, freqs.get(c)));
-		}
-		buildCompressionTree(nodes);
-	}
-
-	private void buildCompressionTree(ArrayList<Node> nodes) {
-		if (keys.size() == 1) {
-			int sum = nodes.get(0).freq;
-			root = new Node(null, sum);
-			root.left = new Node(nodes.get(0).ch, nodes.get(0).freq);
-			root.right = new Node();
-		} 
-		
-		if (nodes.size() > 1) {
-			Collections.sort(nodes);
-			int sum = nodes.get(0).freq + nodes.get(1).freq;
-			root = new Node(null, sum);
-			root.left = nodes.remove(0);
-			root.right = nodes.remove(0);
-			nodes.add(root);
-			buildCompressionTree(nodes);
-		}
-		 
-
-	}
-
-	public Map<Character, ArrayList<Integer>> buildEncodingTable() {
-		encodingTable = new HashMap<Character, ArrayList<Integer>>();
-		buildEncodingTable(root, new ArrayList<Integer>());
-		return encodingTable;
-	}
-
-	private void buildEncodingTable(Node tree, ArrayList<Integer> list) {
-		if (tree.left == null && tree.right == null) {
-			// 9 bits for every leaf
-			size += 9;
-			ArrayList<Integer> sublist = new ArrayList<Integer>();
-			sublist.addAll(list);
-			encodingTable.put(tree.ch, sublist);
-		} else {
-			// 1 bit for every internal node
-
-			if (tree.left != null) {
-				size += 1;
-				ArrayList<Integer> sublist = new ArrayList<Integer>();
-				sublist.addAll(list);
-				sublist.add(0);
-				buildEncodingTable(tree.left, sublist);
+	/**
+	 * Like makeCanonical(), but no code will be longer than maxLength bits.
+	 * If the tree is deeper than that, the lengths are chosen again by
+	 * package-merge, which gives the best code within the limit.
+	 */
+	public void makeCanonical(int maxLength) {
+		Assert.notFalse(maxLength >= 8 && maxLength <= CanonicalCode.MAX_LENGTH,
+				"Code length limit must be between 8 and " + CanonicalCode.MAX_LENGTH);
+		lengths = new int[256];
+		limitCost = 0;
+		int deepest = 0;
+		if (root >= 0) {
+			// children have lower indexes, so depths flow down from the root
+			int[] depth = new int[nodeCount];
+			for (int i = root; i >= 0; i--) {
+				if (symbol[i] >= 0) {
+					lengths[symbol[i]] = depth[i];
+					deepest = Math.max(deepest, depth[i]);
+				} else {
+					if (left[i] >= 0) {
+						depth[left[i]] = depth[i] + 1;
+					}
+					if (right[i] >= 0) {
+						depth[right[i]] = depth[i] + 1;
+					}
+				}
+			}
+		}
+		if (deepest > maxLength) {
+			long unlimited = CanonicalCode.encodedBits(freqs, lengths);
+			packageMerge(maxLength);
+			limitCost = CanonicalCode.encodedBits(freqs, lengths) - unlimited;
+		}
+		codes = CanonicalCode.assign(lengths);
+		root = -1;
+	}
+
+	/**
+	 * Choose code lengths of at most maxLength bits by package-merge. The
+	 * leaves, lightest first, are listed once per allowed length; each list
+	 * above the first merges the leaves with the pairs ("packages") of the
+	 * list below it. The lightest 2n - 2 items of the top list make up the
+	 * best code, and every leaf taken, directly or inside a package, adds a
+	 * bit to its character's code. Leaves in the compression tree are already
+	 * sorted, so they are read from nodes 0 to n - 1.
+	 */
+	private void packageMerge(int maxLength) {
+		int n = (nodeCount + 1) / 2;
+
+		// isPackage[level][i] tells whether item i of that list is a package
+		boolean[][] isPackage = new boolean[maxLength][];
+		isPackage[0] = new boolean[n];
+		long[] list = Arrays.copyOf(nodeFreq, n);
+		for (int level = 1; level < maxLength; level++) {
+			int packages = list.length / 2;
+			long[] merged = new long[n + packages];
+			isPackage[level] = new boolean[n + packages];
+			int leaf = 0;
+			int pkg = 0;
+			for (int i = 0; i < merged.length; i++) {
+				if (pkg == packages
+						|| (leaf < n && nodeFreq[leaf] <= list[2 * pkg] + list[2 * pkg + 1])) {
+					merged[i] = nodeFreq[leaf++];
+				} else {
+					merged[i] = list[2 * pkg] + list[2 * pkg + 1];
+					isPackage[level][i] = true;
+					pkg++;
+				}
+			}
+			list = merged;
+		}
+
+		// leaves are taken lightest first at every level, and each package
+		// taken takes the next two items of the list below
+		int[] limited = new int[256];
+		int take = 2 * n - 2;
+		for (int level = maxLength - 1; level >= 0; level--) {
+			int leaves = 0;
+			for (int i = 0; i < take; i++) {
+				if (!isPackage[level][i]) {
+					limited[symbol[leaves++]]++;
+				}
+			}
+			take = 2 * (take - leaves);
+		}
+		lengths = limited;
+	}
+
+	/**
+	 * @return The number of bits the code length limit added to the coded
+	 *         text, 0 if the limit was not reached
+	 */
+	public long getLimitCost() {
+		return limitCost;
+	}
+
+	public int[] getCodeLengths() {
+		return lengths;
+	}
+
+	public long[] getCodes() {
+		return codes;
+	}
+
+	private void treeFromCodes() {
+		clearNodes(512);
+		for (int c = 0; c < 256; c++) {
+			if (lengths[c] == 0) {
+				continue;
+			}
+			if (root < 0) {
+				root = newNode(-1, 0);
 			}
-			if (tree.right != null) {
-				size += 1;
-				ArrayList<Integer> sublist = new ArrayList<Integer>();
-				sublist.addAll(list);
-				sublist.add(1);
-				buildEncodingTable(tree.right, sublist);
+			int node = root;
+			for (int i = lengths[c] - 1; i >= 0; i--) {
+				if (((codes[c] >>> i) & 1) == 0) {
+					if (left[node] < 0) {
+						int child = newNode(-1, 0);
+						left[node] = child;
+					}
+					node = left[node];
+				} else {
+					if (right[node] < 0) {
+						int child = newNode(-1, 0);
+						right[node] = child;
+					}
+					node = right[node];
+				}
 			}
+			symbol[node] = c;
 		}
+		sumFreqs();
 	}
 
-	public void writeCompressed(String input, BinaryFile outputFile, int padding) {
-		// write magic number
-		outputFile.writeChar('H');
-		outputFile.writeChar('F');
-		// write padding count
-		outputFile.writeChar((char)padding);
-		// write tree
-		sb = new StringBuilder();
-		System.out.println("Serializing tree...");
-		serializeTree(root, outputFile);
-		String serialized = sb.toString();
-		for (char c : serialized.toCharArray()) {
-			if (c == '0') {
-				outputFile.writeBit(false);
-			} else if (c == '1') {
-				outputFile.writeBit(true);
+	private void sumFreqs() {
+		if (freqs == null) {
+			return;
+		}
+		// children have higher indexes, so sums flow up from the last node
+		for (int i = nodeCount - 1; i >= 0; i--) {
+			if (symbol[i] >= 0) {
+				nodeFreq[i] = freqs[symbol[i]];
 			} else {
-				outputFile.writeChar(c);
+				nodeFreq[i] = (left[i] >= 0 ? nodeFreq[left[i]] : 0)
+						+ (right[i] >= 0 ? nodeFreq[right[i]] : 0);
 			}
 		}
+	}
+
+	/**
+	 * Write the compressed file: the magic number, the format byte, the
+	 * number of characters, the canonical code lengths and the encoded text.
+	 * The phases are timed into stats, which may be Stats.NONE.
+	 */
+	public void writeCompressed(String input, BinaryFile outputFile, long numChars, Stats stats) {
+		long t = Stats.now();
+		// write magic number
+		outputFile.writeChar('H');
+		outputFile.writeChar('F');
+		outputFile.writeChar(FORMAT_CANONICAL);
+		outputFile.writeBits(numChars, 64);
+		// write code lengths
+		CanonicalCode.write(outputFile.getWriter(), lengths);
+		stats.addHeaderBits(outputFile.getWriter().getBitCount());
+		stats.add(Stats.HEADER, t);
 		// write encoded text
 		TextFile inputFile = new TextFile(input, 'r');
-		System.out.println("Encoding text...");
-		encodeText(inputFile, outputFile);
-		if (padding > 0) {
-			for (int i = 0; i < padding; i++) {
-				outputFile.writeBit(false);
-			}
-		}
+		encodeText(inputFile, outputFile, stats);
 
 		inputFile.close();
 	}
 
-	private void serializeTree(Node tree, BinaryFile outputFile) {
-		if (tree != null) {
-			if (tree.left == null && tree.right == null) {
-				// 0 = leaf
-				sb.append(0);
-				sb.append(tree.ch);
-			} else {
-				// 1 = internal node
-				sb.append(1);
+	/**
+	 * Write a file compressed with a pre-trained code table: the magic
+	 * number, the format byte, the table ID and the encoded text, then 0 bits
+	 * up to 3 bits short of a whole byte and, in those last 3 bits, the number
+	 * of 0 bits. There is no bit count header, so a small record costs only
+	 * 7 bytes and at most one byte of padding on top of its codes.
+	 */
+	public void writeWithTable(String input, BitWriter out, int tableId, Stats stats) {
+		long t = Stats.now();
+		BinaryFile.writeMagic(out, CodeTable.FORMAT_TABLE);
+		out.writeBits(tableId, 32);
+		stats.addHeaderBits(out.getBitCount());
+		t = stats.add(Stats.HEADER, t);
+
+		// count while encoding, so the text is read only once
+		TextFile inputFile = new TextFile(input, 'r');
+		long[] counts = new long[256];
+		byte[] block = new byte[1 << 16];
+		int n;
+		while ((n = inputFile.read(block, 0, block.length)) > 0) {
+			t = stats.add(Stats.IO, t);
+			encode(block, 0, n, out);
+			t = stats.add(Stats.CODE, t);
+			for (int i = 0; i < n; i++) {
+				counts[block[i] & 0xFF]++;
 			}
-			serializeTree(tree.left, outputFile);
-			serializeTree(tree.right, outputFile);
+			t = stats.add(Stats.HISTOGRAM, t);
 		}
+		inputFile.close();
+		int padding = (int) ((5 - out.getBitCount()) & 7);
+		out.writeBits(0, padding);
+		out.writeBits(padding, 3);
+		stats.addHeaderBits(padding + 3);
+		stats.add(Stats.IO, t);
+		freqs = counts;
 	}
 
-	private void encodeText(TextFile inputFile, BinaryFile outputFile) {
-		while (!inputFile.EndOfFile()) {
-			// text character
-			Character c = new Character(inputFile.readChar());
-			// write out encoded character
-			for (Integer i : encodingTable.get(c)) {
-				if (i.equals(0)) {
-					outputFile.writeBit(false);
-				} else if (i.equals(1)) {
-					outputFile.writeBit(true);
-				} else {
-					System.err
-							.println("Characters should be encoded to 0s or 1s.");
-				}
+	private void encodeText(TextFile inputFile, BinaryFile outputFile, Stats stats) {
+		BitWriter out = outputFile.getWriter();
+		byte[] block = new byte[1 << 16];
+		int n;
+		long t = Stats.now();
+		while ((n = inputFile.read(block, 0, block.length)) > 0) {
+			t = stats.add(Stats.IO, t);
+			encode(block, 0, n, out);
+			t = stats.add(Stats.CODE, t);
+		}
+		stats.add(Stats.IO, t);
+	}
 
-			}
+	/**
+	 * Write the codes for the characters b[off] to b[off + len - 1].
+	 */
+	public void encode(byte[] b, int off, int len, BitWriter out) {
+		long[] codes = this.codes;
+		int[] lengths = this.lengths;
+		for (int i = off; i < off + len; i++) {
+			int c = b[i] & 0xFF;
+			out.writeBits(codes[c], lengths[c]);
+		}
+	}
+
+	/**
+	 * Write the codes for the characters between the position and the limit
+	 * of b, without moving the position.
+	 */
+	public void encode(ByteBuffer b, BitWriter out) {
+		if (b.hasArray()) {
+			encode(b.array(), b.arrayOffset() + b.position(), b.remaining(), out);
+			return;
+		}
+		long[] codes = this.codes;
+		int[] lengths = this.lengths;
+		for (int i = b.position(); i < b.limit(); i++) {
+			int c = b.get(i) & 0xFF;
+			out.writeBits(codes[c], lengths[c]);
+		}
+	}
+
+	/**
+	 * Write the codes for every step-th character between the position and
+	 * the limit of b, starting first characters after the position, without
+	 * moving the position. This codes one of step interleaved streams.
+	 */
+	public void encode(ByteBuffer b, int first, int step, BitWriter out) {
+		long[] codes = this.codes;
+		int[] lengths = this.lengths;
+		for (int i = b.position() + first; i < b.limit(); i += step) {
+			int c = b.get(i) & 0xFF;
+			out.writeBits(codes[c], lengths[c]);
 		}
 	}
 
 	/* Decompression */
 
 	public void buildDecompressionTree(BinaryFile binaryFile) {
+		clearNodes(512);
 		// root is internal node
 		boolean one = binaryFile.readBit();
-		if (one) {
-			root = new Node();
+		if (!one) {
+			return;
 		}
-		buildDecompressionTree(binaryFile, root);
-	}
-
-	private void buildDecompressionTree(BinaryFile binaryFile, Node tree) {
-		if (!binaryFile.EndOfFile()) {
-			boolean bit = binaryFile.readBit();
-			// 1 = internal node
-			if (bit) {
-				tree.left = new Node();
-				buildDecompressionTree(binaryFile, tree.left);
+		root = newNode(-1, 0);
+
+		// internal nodes still waiting for children, in preorder
+		int[] stack = new int[64];
+		int depth = 0;
+		stack[depth++] = root;
+		while (depth > 0 && !binaryFile.EndOfFile()) {
+			int parent = stack[depth - 1];
+			boolean isLeft = left[parent] < 0;
+			if (!isLeft) {
+				depth--;
+			}
+			int child;
+			// 1 = internal node, 0 = leaf
+			if (binaryFile.readBit()) {
+				child = newNode(-1, 0);
+				if (depth == stack.length) {
+					stack = Arrays.copyOf(stack, 2 * depth);
+				}
+				stack[depth++] = child;
 			} else {
-				// 0 = leaf
-				char c = binaryFile.readChar();
-				tree.left = new Node(c);
+				child = newNode(binaryFile.readChar(), 0);
 			}
-
-			bit = binaryFile.readBit();
-			// 1 = internal node
-			if (bit) {
-				tree.right = new Node();
-				buildDecompressionTree(binaryFile, tree.right);
+			if (isLeft) {
+				left[parent] = child;
 			} else {
-				// 0 = leaf
-				char c = binaryFile.readChar();
-				tree.right = new Node(c);
+				right[parent] = child;
 			}
 		}
 	}
 
-	public Map<String, Character> buildDecodingTable() {
-		decodingTable = new HashMap<String, Character>();
-		buildDecodingTable(root, new ArrayList<Integer>());
-		return decodingTable;
+	/**
+	 * Read the canonical code lengths of a compressed file, and build the
+	 * decoding table and the tree from them.
+	 */
+	public void readCodeLengths(BitReader in) {
+		lengths = CanonicalCode.read(in);
+		codes = CanonicalCode.assign(lengths);
+		decodingTable = new DecodingTable(codes, lengths);
 	}
 
-	public void buildDecodingTable(Node tree, ArrayList<Integer> list) {
-		if (tree.left == null && tree.right == null) {
-			String code = "";
-			for (int i : list)
-				code += i;
-
-			decodingTable.put(code, tree.ch);
-		} else {
-			if (tree.left != null) {
-				ArrayList<Integer> sublist = new ArrayList<Integer>();
-				sublist.addAll(list);
-				sublist.add(0);
-				buildDecodingTable(tree.left, sublist);
+	public DecodingTable buildDecodingTable() {
+		codes = new long[256];
+		lengths = new int[256];
+		if (root >= 0) {
+			// walk the tree with an explicit stack of (node, code, length)
+			int[] stack = new int[nodeCount];
+			long[] stackCode = new long[nodeCount];
+			int[] stackLength = new int[nodeCount];
+			int depth = 0;
+			stack[depth++] = root;
+			while (depth > 0) {
+				depth--;
+				int node = stack[depth];
+				long code = stackCode[depth];
+				int len = stackLength[depth];
+				if (symbol[node] >= 0) {
+					codes[symbol[node]] = code;
+					lengths[symbol[node]] = len;
+				}
+				if (right[node] >= 0) {
+					stack[depth] = right[node];
+					stackCode[depth] = (code << 1) | 1;
+					stackLength[depth++] = len + 1;
+				}
+				if (left[node] >= 0) {
+					stack[depth] = left[node];
+					stackCode[depth] = code << 1;
+					stackLength[depth++] = len + 1;
+				}
 			}
-			if (tree.right != null) {
-				ArrayList<Integer> sublist = new ArrayList<Integer>();
-				sublist.addAll(list);
-				sublist.add(1);
-				buildDecodingTable(tree.right, sublist);
+		}
+		decodingTable = new DecodingTable(codes, lengths);
+		return decodingTable;
+	}
+
+	/**
+	 * Decode text from a file that marks its end with padding bits, timing
+	 * the phases into stats.
+	 */
+	public void decodeText(BinaryFile inputFile, TextFile outputFile, int padding, Stats stats) {
+		long[] counts = new long[256];
+		byte[] block = new byte[1 << 16];
+		int n = 0;
+
+		BitReader in = inputFile.getReader();
+		long t = Stats.now();
+		while (!inputFile.EndOfPaddedFile(padding)) {
+			int c = decodeSymbol(in);
+			counts[c]++;
+			block[n++] = (byte) c;
+			if (n == block.length) {
+				t = stats.add(Stats.CODE, t);
+				outputFile.write(block, 0, n);
+				t = stats.add(Stats.IO, t);
+				n = 0;
 			}
 		}
+		t = stats.add(Stats.CODE, t);
+		outputFile.write(block, 0, n);
+		stats.add(Stats.IO, t);
+		freqs = counts;
 	}
 
-	public void decodeText(BinaryFile inputFile, TextFile outputFile, int padding) {
+	/**
+	 * Decode every bit left in the reader into the output file, as written
+	 * by writeWithTable.
+	 */
+	public void decodeText(BitReader in, TextFile outputFile, Stats stats) {
+		long[] counts = new long[256];
+		byte[] block = new byte[1 << 16];
+		int n = 0;
+
+		long t = Stats.now();
+		while (in.getBitsRead() < in.getTotalBits()) {
+			int c = decodeSymbol(in);
+			counts[c]++;
+			block[n++] = (byte) c;
+			if (n == block.length) {
+				t = stats.add(Stats.CODE, t);
+				outputFile.write(block, 0, n);
+				t = stats.add(Stats.IO, t);
+				n = 0;
+			}
+		}
+		t = stats.add(Stats.CODE, t);
+		outputFile.write(block, 0, n);
+		stats.add(Stats.IO, t);
+		freqs = counts;
+	}
 
-		freqs = new HashMap<Character, Integer>();
+	/**
+	 * Decode numChars characters of text, timing the phases into stats.
+	 */
+	public void decodeSymbols(BinaryFile inputFile, TextFile outputFile, long numChars, Stats stats) {
+		long[] counts = new long[256];
+		byte[] block = new byte[1 << 16];
+
+		BitReader in = inputFile.getReader();
+		long t = Stats.now();
+		for (long done = 0; done < numChars;) {
+			int n = (int) Math.min(block.length, numChars - done);
+			decode(in, block, 0, n);
+			t = stats.add(Stats.CODE, t);
+			for (int i = 0; i < n; i++) {
+				counts[block[i] & 0xFF]++;
+			}
+			t = stats.add(Stats.HISTOGRAM, t);
+			outputFile.write(block, 0, n);
+			t = stats.add(Stats.IO, t);
+			done += n;
+		}
+		freqs = counts;
+	}
 
-		while (!inputFile.EndOfPaddedFile(padding)) {
-			String code = "";
+	/**
+	 * Decode len characters into b[off] to b[off + len - 1]. Where the table
+	 * allows it, every lookup decodes up to DecodingTable.MAX_SYMBOLS
+	 * characters; the last few characters and long codes are decoded one at
+	 * a time.
+	 */
+	public void decode(BitReader in, byte[] b, int off, int len) {
+		if (!decodingTable.hasMulti()) {
+			decodeSingle(in, b, off, len);
+			return;
+		}
+		DecodingTable table = decodingTable;
+		int i = off;
+		// an entry may decode past what is wanted, so stop MAX_SYMBOLS early
+		int multiEnd = off + len - DecodingTable.MAX_SYMBOLS;
+		while (i <= multiEnd) {
+			int entry = table.lookupMulti((int) in.peekBits(DecodingTable.MULTI_BITS));
+			if (entry == 0) {
+				b[i++] = (byte) decodeSymbol(in);
+				continue;
+			}
+			in.skipBits(DecodingTable.multiLength(entry));
+			// write all three; only count of them are kept
+			b[i] = (byte) entry;
+			b[i + 1] = (byte) (entry >>> 8);
+			b[i + 2] = (byte) (entry >>> 16);
+			i += DecodingTable.count(entry);
+		}
+		decodeSingle(in, b, i, off + len - i);
+	}
 
-			while (decodingTable.get(code) == null) {
-				// get bit
-				boolean b = inputFile.readBit();
-				if (b) {
-					code +=1;
-				} else {
-					code += 0;
+	/**
+	 * Decode len characters, dealt out round-robin to the four streams
+	 * between the position and the limit of each of in, into b[off] to
+	 * b[off + len - 1]: character i is in stream i % 4.
+	 *
+	 * Every stream has its own 64-bit accumulator and output position in
+	 * local variables. Each turn of the loop refills all four accumulators
+	 * and then makes as many multi-symbol lookups in each as are sure to find
+	 * their bits in it, with no test for running dry in between. The four
+	 * chains of lookups do not depend on each other, so the processor can
+	 * overlap them. The last few characters of every stream are decoded
+	 * through a BitReader.
+	 */
+	public void decode(ByteBuffer[] in, byte[] b, int off, int len) {
+		Assert.notFalse(in.length == 4, "Expected 4 streams");
+		DecodingTable table = decodingTable;
+		table.buildMulti();
+		int maxLength = 0;
+		for (int l : lengths) {
+			maxLength = Math.max(maxLength, l);
+		}
+		// lookups in each stream per refill, each using at most
+		// max(MULTI_BITS, maxLength) bits; 0 if a code may not fit
+		int perTurn = BitReader.MAX_BITS / Math.max(DecodingTable.MULTI_BITS, maxLength);
+		// the lookups of a turn may write this far past a stream's position
+		int reach = 4 * DecodingTable.MAX_SYMBOLS * perTurn;
+		int shift = 64 - DecodingTable.MULTI_BITS;
+
+		ByteBuffer in0 = in[0];
+		ByteBuffer in1 = in[1];
+		ByteBuffer in2 = in[2];
+		ByteBuffer in3 = in[3];
+		int pos0 = in0.position();
+		int pos1 = in1.position();
+		int pos2 = in2.position();
+		int pos3 = in3.position();
+		long acc0 = 0, acc1 = 0, acc2 = 0, acc3 = 0;
+		int bits0 = 0, bits1 = 0, bits2 = 0, bits3 = 0;
+		int o0 = off, o1 = off + 1, o2 = off + 2, o3 = off + 3;
+
+		int end = off + len - reach;
+		while (perTurn > 0 && o0 <= end && o1 <= end && o2 <= end && o3 <= end
+				&& pos0 + 8 <= in0.limit() && pos1 + 8 <= in1.limit()
+				&& pos2 + 8 <= in2.limit() && pos3 + 8 <= in3.limit()) {
+			// refill as BitReader does, to between 56 and 63 bits
+			acc0 = (acc0 | in0.getLong(pos0) >>> bits0) & (-1L << (64 - (bits0 | 56)));
+			pos0 += (63 - bits0) >>> 3;
+			bits0 |= 56;
+			acc1 = (acc1 | in1.getLong(pos1) >>> bits1) & (-1L << (64 - (bits1 | 56)));
+			pos1 += (63 - bits1) >>> 3;
+			bits1 |= 56;
+			acc2 = (acc2 | in2.getLong(pos2) >>> bits2) & (-1L << (64 - (bits2 | 56)));
+			pos2 += (63 - bits2) >>> 3;
+			bits2 |= 56;
+			acc3 = (acc3 | in3.getLong(pos3) >>> bits3) & (-1L << (64 - (bits3 | 56)));
+			pos3 += (63 - bits3) >>> 3;
+			bits3 |= 56;
+
+			for (int n = 0; n < perTurn; n++) {
+				int e0 = table.lookupMulti((int) (acc0 >>> shift));
+				int e1 = table.lookupMulti((int) (acc1 >>> shift));
+				int e2 = table.lookupMulti((int) (acc2 >>> shift));
+				int e3 = table.lookupMulti((int) (acc3 >>> shift));
+				// 0: the code is longer than the table; make it an entry
+				// of one symbol
+				if (e0 == 0) {
+					e0 = multiEntry(table.lookupLong(acc0));
+				}
+				if (e1 == 0) {
+					e1 = multiEntry(table.lookupLong(acc1));
+				}
+				if (e2 == 0) {
+					e2 = multiEntry(table.lookupLong(acc2));
+				}
+				if (e3 == 0) {
+					e3 = multiEntry(table.lookupLong(acc3));
 				}
+				acc0 <<= DecodingTable.multiLength(e0);
+				bits0 -= DecodingTable.multiLength(e0);
+				acc1 <<= DecodingTable.multiLength(e1);
+				bits1 -= DecodingTable.multiLength(e1);
+				acc2 <<= DecodingTable.multiLength(e2);
+				bits2 -= DecodingTable.multiLength(e2);
+				acc3 <<= DecodingTable.multiLength(e3);
+				bits3 -= DecodingTable.multiLength(e3);
+				// write all three; only count of them are kept
+				b[o0] = (byte) e0;
+				b[o0 + 4] = (byte) (e0 >>> 8);
+				b[o0 + 8] = (byte) (e0 >>> 16);
+				o0 += 4 * DecodingTable.count(e0);
+				b[o1] = (byte) e1;
+				b[o1 + 4] = (byte) (e1 >>> 8);
+				b[o1 + 8] = (byte) (e1 >>> 16);
+				o1 += 4 * DecodingTable.count(e1);
+				b[o2] = (byte) e2;
+				b[o2 + 4] = (byte) (e2 >>> 8);
+				b[o2 + 8] = (byte) (e2 >>> 16);
+				o2 += 4 * DecodingTable.count(e2);
+				b[o3] = (byte) e3;
+				b[o3 + 4] = (byte) (e3 >>> 8);
+				b[o3 + 8] = (byte) (e3 >>> 16);
+				o3 += 4 * DecodingTable.count(e3);
 			}
-			assert decodingTable.get(code) != null;
-			Character c = decodingTable.get(code);
+		}
 
-			Integer currFreq = freqs.get(c);
-			if (currFreq == null) {
-				currFreq = 0;
-			}
-			currFreq++;
-			freqs.put(c, currFreq);
+		decodeStream(remaining(in0, pos0, bits0), b, o0, off + len);
+		decodeStream(remaining(in1, pos1, bits1), b, o1, off + len);
+		decodeStream(remaining(in2, pos2, bits2), b, o2, off + len);
+		decodeStream(remaining(in3, pos3, bits3), b, o3, off + len);
+	}
+
+	/**
+	 * The multi-symbol entry for a single symbol table entry
+	 */
+	private static int multiEntry(int entry) {
+		return (DecodingTable.length(entry) << 26) | (1 << 24) | DecodingTable.symbol(entry);
+	}
+
+	/**
+	 * A reader for the bits of a stream that are not yet decoded, with the
+	 * stream read up to byte pos and accBits of those bits still unused.
+	 */
+	private static BitReader remaining(ByteBuffer in, int pos, int accBits) {
+		long bit = 8L * (pos - in.position()) - accBits;
+		int start = in.position() + (int) (bit >>> 3);
+		BitReader reader = new BitReader(in.slice(start, in.limit() - start), 8L * (in.limit() - start));
+		reader.readBits((int) (bit & 7));
+		return reader;
+	}
 
-			outputFile.writeChar(c);
+	/**
+	 * Decode the rest of one of four interleaved streams into every fourth
+	 * character from b[from] up to b[end - 1].
+	 */
+	private void decodeStream(BitReader in, byte[] b, int from, int end) {
+		for (int i = from; i < end; i += 4) {
+			b[i] = (byte) decodeSymbol(in);
 		}
+		// bits past the stream read as 0; needing them means damage
+		Assert.notFalse(in.getBitsRead() <= in.getTotalBits(), "Damaged block");
+	}
+
+	/**
+	 * Decode len characters into b[off] to b[off + len - 1], one character
+	 * per table lookup.
+	 */
+	public void decodeSingle(BitReader in, byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			b[i] = (byte) decodeSymbol(in);
+		}
+	}
+
+	private int decodeSymbol(BitReader in) {
+		int entry = decodingTable.lookup((int) in.peekBits(DecodingTable.TABLE_BITS));
+		int len = DecodingTable.length(entry);
+		if (len != 0) {
+			in.skipBits(len);
+			return DecodingTable.symbol(entry);
+		}
+		// code longer than the table: walk the rest bit by bit
+		int node = 0;
+		do {
+			node = decodingTable.child(node, in.readBit());
+		} while (node > 0);
+		return -node - 1;
+	}
+
+	/**
+	 * @return The code for c as a string of '0's and '1's, or null if c has
+	 *         no code. Only valid once the codes have been built or read.
+	 */
+	public String getCode(char c) {
+		if (lengths[c] == 0) {
+			return null;
+		}
+		StringBuilder code = new StringBuilder();
+		for (int i = lengths[c] - 1; i >= 0; i--) {
+			code.append((codes[c] >>> i) & 1);
+		}
+		return code.toString();
 	}
 
 	public void print() {
+		ensureTree();
 		print(root);
 	}
 
-	private void print(Node tree) {
-		if (tree != null) {
-			System.out.println(tree.ch + ", " + tree.freq);
+	private void print(int tree) {
+		if (tree >= 0) {
+			System.out.println((symbol[tree] >= 0 ? String.valueOf((char) symbol[tree]) : "null")
+					+ ", " + nodeFreq[tree]);
 			System.out.println("down left");
-			print(tree.left);
-			System.out.println("back up to " + tree.freq + " from left");
+			print(left[tree]);
+			System.out.println("back up to " + nodeFreq[tree] + " from left");
 			System.out.println("down-right");
-			print(tree.right);
-			System.out.println("back up to " + tree.freq + " from right");
+			print(right[tree]);
+			System.out.println("back up to " + nodeFreq[tree] + " from right");
 		}
 	}
 
-	public Map<Character, Integer> getFreqs() {
+	public long[] getFreqs() {
 		return freqs;
 	}
 	
 	public void printTree(int offset) {
+		ensureTree();
 		printTree(root, offset);
 	}
 	
-	private void printTree(Node tree, int offset) {
-		if (tree != null) {
+	private void printTree(int tree, int offset) {
+		if (tree >= 0) {
 			for (int i = 0; i < offset; i++) {
 				System.out.print("\t");
 			}
 			char c = ' ';
-			if(tree.ch != null) {
-				c = tree.ch;
+			if (symbol[tree] >= 0) {
+				c = (char) symbol[tree];
 				if (c == '\n')
 					c = ' ';
 			}
 			
-			System.out.println("(" + c + " : " + tree.freq + ")");
-			printTree(tree.left, offset + 1);
-			printTree(tree.right, offset-1);
+			System.out.println("(" + c + " : " + nodeFreq[tree] + ")");
+			printTree(left[tree], offset + 1);
+			printTree(right[tree], offset-1);
 		}
 	}
 
-	public long getSize() {
-		return size;
-	}
-	
 	public int height() {
+		ensureTree();
 		return height(root);
 	}
 	
-	private int height(Node tree) {
-		if (tree == null)
+	private int height(int tree) {
+		if (tree < 0)
 			return 0;
-		return Math.max((1 + height(tree.left)), height(tree.right));
+		return Math.max((1 + height(left[tree])), height(right[tree]));
+	}
+
+	/**
+	 * Canonical trees are only kept as code lengths; rebuild the nodes from
+	 * the codes when they are needed for printing.
+	 */
+	private void ensureTree() {
+		if (root < 0 && lengths != null) {
+			treeFromCodes();
+		} else {
+			sumFreqs();
+		}
 	}
 }
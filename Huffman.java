@@ -1,19 +1,57 @@
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Huffman {
 
-	private static String input;
-	private static String output;
+	private String input;
+	private String output;
 
-	private static Map<Character, Integer> freq;
-	private static Map<Character, ArrayList<Integer>> encodingTable;
-	private static Map<String, Character> decodingTable;
+	private long[] freq;
 	
-	private static HuffTree tree;
+	private HuffTree tree;
+
+	// why there is no tree to print when tree is null
+	private String noTree;
+	/* Blocks of each type, for -v; null for the single-tree formats */
+	private long[] blockTypes;
+
+	// progress messages; batch jobs turn them off
+	private PrintStream log = System.out;
+
+	// timing and sizes of the last run
+	private Stats stats = Stats.NONE;
+
+	/* Options, as given on the command line */
+	private boolean compress = true; // false = uncompress
+	private boolean force = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int blockSize = BlockCodec.DEFAULT_BLOCK_SIZE;
+	private boolean mapped = false;
+	private boolean adaptive = false;
+	private boolean context = false;
+	private int sampleChunks = 0;
+	private CodeTable table = null;
+	private int maxLength = CanonicalCode.MAX_LENGTH;
+	private boolean statsJson = false;
+	private boolean batchJob = false;
+
+	/** Inputs of at least this many bytes are always memory-mapped */
+	public static final long MAP_THRESHOLD = 64L << 20;
 
 	/**
 	 * @param command
@@ -21,30 +59,39 @@ public class Huffman {
 	 */
 	public static void main(String[] args) {
 
-		boolean compress = true; // false = uncompress
-		boolean force = false;
+		Huffman huffman = new Huffman();
+		boolean train = false;
 		boolean verbose = false;
+		boolean batch = false;
+
+		if (args.length > 0 && (args[0].equals("-A") || args[0].equals("-L") || args[0].equals("-X"))) {
+			try {
+				Archive.command(args);
+			} catch (RuntimeException e) {
+				System.out.println(e.getMessage());
+				System.exit(-1);
+			}
+			return;
+		}
 
-		if (args.length < 3 || args.length > 5) {
+		if (args.length < 3) {
 			System.err.println("Missing command line arguments.");
 			System.exit(-1);
 		}
 
 		if (args[0].equals("-c")) {
-			compress = true;
+			huffman.compress = true;
 		} else if (args[0].equals("-u")) {
-			compress = false;
+			huffman.compress = false;
+		} else if (args[0].equals("-t")) {
+			train = true;
 		} else {
-			System.err.println("First argument must be '-c' or '-u'.");
+			System.err.println("First argument must be '-c', '-u' or '-t'.");
 			System.exit(-1);
 		}
 
-		output = args[args.length - 1];
-		input = args[args.length - 2];
-
-		// remove existing output file
-		File f = new File(output);
-		f.delete();
+		String output = args[args.length - 1];
+		String input = args[args.length - 2];
 
 		if (output == null || output.startsWith("-") || input == null
 				|| input.startsWith("-")) {
@@ -52,202 +99,1007 @@ public class Huffman {
 			System.exit(-1);
 		}
 
-		if (args[1].equals("-v") || args[2].equals("-v")) {
-			verbose = true;
+		for (int i = 1; i < args.length - 2; i++) {
+			if (args[i].equals("-v")) {
+				verbose = true;
+			} else if (args[i].equals("-f")) {
+				huffman.force = true;
+			} else if (args[i].equals("-m")) {
+				huffman.mapped = true;
+			} else if (args[i].equals("-a")) {
+				huffman.adaptive = true;
+			} else if (args[i].equals("-o")) {
+				huffman.context = true;
+			} else if (args[i].equals("-B")) {
+				batch = true;
+			} else if (args[i].equals("-j") && i + 1 < args.length - 2) {
+				huffman.threads = parseCount(args[++i], 1);
+			} else if (args[i].equals("-b") && i + 1 < args.length - 2) {
+				huffman.blockSize = parseCount(args[++i], 0);
+			} else if (args[i].equals("-T") && i + 1 < args.length - 2) {
+				huffman.table = CodeTable.load(args[++i]);
+			} else if (args[i].equals("-s") && i + 1 < args.length - 2) {
+				huffman.sampleChunks = parseCount(args[++i], 1);
+			} else if (args[i].equals("-l") && i + 1 < args.length - 2) {
+				huffman.maxLength = parseCount(args[++i], 8, CanonicalCode.MAX_LENGTH);
+			} else if (args[i].equals("--stats") && i + 1 < args.length - 2) {
+				if (!args[++i].equals("json")) {
+					System.err.println("Unknown stats format " + args[i] + "; expected json.");
+					System.exit(-1);
+				}
+				huffman.statsJson = true;
+			} else {
+				System.err.println("Unknown option " + args[i] + ".");
+				System.exit(-1);
+			}
 		}
-		if (args[1].equals("-f") || args[2].equals("-f")) {
-			force = true;
+
+		if (batch && !train) {
+			// one file per thread, each coded on a single thread
+			int jobs = huffman.threads;
+			huffman.threads = 1;
+			Batch.run(huffman, input, output, jobs);
+			return;
 		}
 
-		boolean decomp = true;
-		
-		if (compress) {
-			compress(force);
-		} else {
-			decomp = decompress();
+		huffman.input = input;
+		huffman.output = output;
+
+		// remove existing output file
+		File f = new File(output);
+		f.delete();
+
+		boolean decomp = false;
+		try {
+			if (train) {
+				huffman.train(huffman.maxLength);
+			} else {
+				decomp = huffman.run();
+			}
+		} catch (RuntimeException e) {
+			// what was written of the output is of no use
+			f.delete();
+			System.out.println(e.getMessage());
+			System.exit(-1);
 		}
 
 		if (verbose && decomp) {
 			System.out.println();
-			printVerbose(compress);
+			huffman.printVerbose(huffman.compress);
+		}
+
+	}
+
+	/**
+	 * A copy of these options for another pair of files, that prints no
+	 * progress messages.
+	 */
+	public Huffman forFiles(String input, String output) {
+		Huffman job = new Huffman();
+		job.input = input;
+		job.output = output;
+		job.log = new PrintStream(OutputStream.nullOutputStream());
+		job.compress = compress;
+		job.force = force;
+		job.threads = threads;
+		job.blockSize = blockSize;
+		job.mapped = mapped;
+		job.adaptive = adaptive;
+		job.context = context;
+		job.sampleChunks = sampleChunks;
+		job.table = table;
+		job.maxLength = maxLength;
+		job.statsJson = statsJson;
+		job.batchJob = true;
+		return job;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public boolean isStatsJson() {
+		return statsJson;
+	}
+
+	/**
+	 * Compress or decompress the input into the output, as the options say.
+	 * The run is timed into a new Stats, which is printed to standard error
+	 * as a line of JSON with --stats json.
+	 *
+	 * @return False if the input could not be decompressed
+	 */
+	public boolean run() {
+		stats = new Stats(compress, input, output);
+		boolean done = true;
+		if (!compress) {
+			done = decompress(threads, mapped, table);
+		} else if (table != null) {
+			compressWithTable(force, table);
+		} else if (adaptive) {
+			compressAdaptive(force);
+		} else if (sampleChunks > 0 || blockSize == 0) {
+			compress(force, maxLength, sampleChunks);
+		} else if (mapped || new File(input).length() >= MAP_THRESHOLD) {
+			compressMapped(force, blockSize, threads, maxLength, context);
+		} else {
+			compressBlocks(force, blockSize, threads, maxLength, context);
+		}
+		if (!batchJob) {
+			// the heap is shared by all files of a batch, so only a single
+			// file can have it as its own
+			stats.setPeakHeap(Stats.peakHeap());
+		}
+		stats.finish();
+		if (statsJson && done) {
+			System.err.println(stats.toJson());
+		}
+		return done;
+	}
+
+	/**
+	 * An exception caught while coding, to be thrown on to main, or to the
+	 * batch worker coding the file, which decide what to do about it. A
+	 * failed worker task gives its own exception rather than the
+	 * ExecutionException around it.
+	 */
+	static RuntimeException failed(Exception e) {
+		Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		return new RuntimeException(cause.getMessage(), cause);
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+
+	private static int parseCount(String arg, int min) {
+		return parseCount(arg, min, Integer.MAX_VALUE);
+	}
+
+	private static int parseCount(String arg, int min, int max) {
+		int count = -1;
+		try {
+			count = Integer.parseInt(arg);
+		} catch (NumberFormatException e) {
+		}
+		if (count < min) {
+			System.err.println("Expected a number of at least " + min + ", not " + arg + ".");
+			System.exit(-1);
 		}
+		if (count > max) {
+			System.err.println("Expected a number of at most " + max + ", not " + arg + ".");
+			System.exit(-1);
+		}
+		return count;
+	}
 
+	/**
+	 * Tell how much the code length limit cost, if it was reached.
+	 */
+	private void reportLimitCost(int maxLength, long costBits, long sizeC) {
+		if (costBits > 0) {
+			log.printf("Limiting codes to %d bits cost %d bytes (%.3f%% of the output).%n",
+					maxLength, (costBits + 7) / 8, 100.0 * costBits / Math.max(1, sizeC));
+		}
 	}
 
-	public static void compress(boolean force) {
+	/**
+	 * Compress the input as independently coded blocks of blockSize
+	 * characters. Blocks are coded on a pool of worker threads while the
+	 * input is read, and written out in order as they finish. With context,
+	 * blocks that the order-1 context model makes smaller are coded with it.
+	 */
+	public void compressBlocks(boolean force, int blockSize, int threads, final int maxLength,
+			final boolean context) {
 		TextFile textFile = new TextFile(input, 'r');
+		BinaryFile binaryFile = new BinaryFile(output, 'w');
+		BitWriter out = binaryFile.getWriter();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<BlockCodec.Block>> pending = new ArrayDeque<Future<BlockCodec.Block>>();
 
-		/* Calculate Character Frequencies */
+		freq = new long[256];
+		tree = null;
+		noTree = "Every block has its own Huffman tree.";
+		blockTypes = new long[BlockCodec.TYPE_NAMES.length];
+		long sizeU = textFile.length() * 8;
+		long limitCost = 0;
+
+		log.println("Writing compressed file...");
+		stats.setFormat("blocks");
+		long t = Stats.now();
+		BlockCodec.writeFileHeader(out, blockSize);
+		// the file header and the end marker
+		stats.addHeaderBits(8 * (BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE + 1));
+		t = stats.add(Stats.HEADER, t);
 
-		freq = new HashMap<Character, Integer>();
+		try {
+			while (!textFile.EndOfFile() || !pending.isEmpty()) {
+				// keep a couple of blocks per thread in flight
+				while (!textFile.EndOfFile() && pending.size() < 2 * threads) {
+					final byte[] data = new byte[(int) Math.min(blockSize,
+							textFile.length() - textFile.position())];
+					int n = 0;
+					while (n < data.length) {
+						int read = textFile.read(data, n, data.length - n);
+						// the input got shorter since its length was taken
+						Assert.notFalse(read > 0, "The input changed while it was compressed");
+						n += read;
+					}
+					pending.add(pool.submit(new Callable<BlockCodec.Block>() {
+						public BlockCodec.Block call() {
+							return BlockCodec.encode(data, 0, data.length, maxLength, context, stats);
+						}
+					}));
+				}
+				t = stats.add(Stats.IO, t);
+				BlockCodec.Block block = pending.remove().get();
+				t = Stats.now();
+				BlockCodec.writeHeader(out, block);
+				out.writeBytes(block.payload, 0, block.payload.length);
+				t = stats.add(Stats.IO, t);
+				limitCost += block.limitCost;
+				blockTypes[block.type]++;
+				for (int c = 0; c < 256; c++) {
+					freq[c] += block.freqs[c];
+				}
+			}
+		} catch (Exception e) {
+			throw failed(e);
+		} finally {
+			pool.shutdown();
+		}
+		out.writeBits(BlockCodec.TYPE_END, 8);
 
-		System.out.println("Building Huffman tree...");
+		textFile.close();
+		binaryFile.close();
+		stats.add(Stats.IO, t);
 
-		while (!textFile.EndOfFile()) {
-			Character c = new Character(textFile.readChar());
-			Integer currFreq = freq.get(c);
-			if (currFreq == null) {
-				currFreq = new Integer(1);
+		long sizeC = new File(output).length() * 8;
+		reportLimitCost(maxLength, limitCost, sizeC);
+		if (sizeC >= sizeU) {
+			if (force) {
+				log.println("Forced compression.");
 			} else {
-				int newFreq = currFreq.intValue() + 1;
-				currFreq = new Integer(newFreq);
+				new File(output).delete();
+				log
+						.println("The file cannot be compressed to a smaller size.");
 			}
-			freq.put(c, currFreq);
 		}
+	}
 
-		textFile.close();
+	/**
+	 * Compress the input in the block format through memory-mapped files.
+	 * The input is mapped a window at a time. The blocks of each window are
+	 * first planned in parallel, which gives the exact size of every payload,
+	 * and then coded in parallel straight into the mapped output. context is
+	 * as for compressBlocks.
+	 */
+	public void compressMapped(boolean force, int blockSize, int threads, final int maxLength,
+			final boolean context) {
+		MappedFile in = new MappedFile(input);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int windowBlocks = (int) Math.max(1, MappedFile.WINDOW_SIZE / blockSize);
 
-		MapValueComparator comp = new MapValueComparator(freq);
-		Map<Character, Integer> sortedFreq = new TreeMap<Character, Integer>(
-				comp);
-		sortedFreq.putAll(freq);
+		freq = new long[256];
+		tree = null;
+		noTree = "Every block has its own Huffman tree.";
+		blockTypes = new long[BlockCodec.TYPE_NAMES.length];
+		long sizeU = in.size() * 8;
+		long limitCost = 0;
+
+		log.println("Writing compressed file...");
+		stats.setFormat("blocks");
+		// the file header and the end marker
+		stats.addHeaderBits(8 * (BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE + 1));
+		try {
+			RandomAccessFile file = new RandomAccessFile(output, "rw");
+			FileChannel channel = file.getChannel();
+			long outPos = BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE;
+			long inPos = 0;
+
+			while (inPos < in.size()) {
+				int count = (int) Math.min(windowBlocks,
+						(in.size() - inPos + blockSize - 1) / blockSize);
+				ArrayList<Future<BlockCodec.Block>> plans = new ArrayList<Future<BlockCodec.Block>>();
+				final ByteBuffer[] sources = new ByteBuffer[count];
+				for (int i = 0; i < count; i++) {
+					long start = inPos + (long) i * blockSize;
+					final ByteBuffer src = in.slice(start,
+							(int) Math.min(blockSize, in.size() - start));
+					sources[i] = src;
+					plans.add(pool.submit(new Callable<BlockCodec.Block>() {
+						public BlockCodec.Block call() {
+							return BlockCodec.plan(src, maxLength, context, stats);
+						}
+					}));
+				}
 
-		long numChars = 0;
-		for (Character c : sortedFreq.keySet()) {
-			long f = sortedFreq.get(c);
-			numChars += f;
+				BlockCodec.Block[] blocks = new BlockCodec.Block[count];
+				long windowOut = 0;
+				for (int i = 0; i < count; i++) {
+					blocks[i] = plans.get(i).get();
+					windowOut += BlockCodec.BLOCK_HEADER_SIZE + blocks[i].payloadLength;
+					limitCost += blocks[i].limitCost;
+					blockTypes[blocks[i].type]++;
+					for (int c = 0; c < 256; c++) {
+						freq[c] += blocks[i].freqs[c];
+					}
+				}
+
+				long t = Stats.now();
+				MappedByteBuffer dest = channel.map(FileChannel.MapMode.READ_WRITE, outPos, windowOut);
+				stats.add(Stats.IO, t);
+				ArrayList<Future<?>> coded = new ArrayList<Future<?>>();
+				int offset = 0;
+				for (int i = 0; i < count; i++) {
+					final BlockCodec.Block block = blocks[i];
+					final ByteBuffer src = sources[i];
+					final ByteBuffer blockDest = dest.slice(offset,
+							BlockCodec.BLOCK_HEADER_SIZE + block.payloadLength);
+					coded.add(pool.submit(new Runnable() {
+						public void run() {
+							BitWriter out = new BitWriter(blockDest);
+							BlockCodec.writeHeader(out, block);
+							BlockCodec.encode(block, src, out, stats);
+							out.flush();
+						}
+					}));
+					offset += BlockCodec.BLOCK_HEADER_SIZE + block.payloadLength;
+				}
+				for (Future<?> f : coded) {
+					f.get();
+				}
+
+				outPos += windowOut;
+				inPos += (long) count * blockSize;
+			}
+
+			// the end marker, then the headers in front of the blocks
+			long t = Stats.now();
+			channel.write(ByteBuffer.wrap(new byte[] { BlockCodec.TYPE_END }), outPos);
+			outPos++;
+			ByteBuffer header = ByteBuffer.allocate(BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE);
+			BitWriter out = new BitWriter(header);
+			out.writeBits(BinaryFile.LENGTH_64, 32);
+			out.writeBits((outPos - BinaryFile.HEADER_SIZE) * 8, 64); /* # of bits in the file */
+			BlockCodec.writeFileHeader(out, blockSize);
+			out.flush();
+			header.flip();
+			channel.write(header, 0);
+			file.setLength(outPos);
+			file.close();
+			stats.add(Stats.HEADER, t);
+		} catch (Exception e) {
+			throw failed(e);
+		} finally {
+			pool.shutdown();
 		}
+		in.close();
+
+		long sizeC = new File(output).length() * 8;
+		reportLimitCost(maxLength, limitCost, sizeC);
+		if (sizeC >= sizeU) {
+			if (force) {
+				log.println("Forced compression.");
+			} else {
+				new File(output).delete();
+				log
+						.println("The file cannot be compressed to a smaller size.");
+			}
+		}
+	}
+
+	/**
+	 * Train a code table on the files of the input (a file or a directory)
+	 * and save it as the output.
+	 */
+	public void train(int maxLength) {
+		log.println("Training code table...");
+		CodeTable table = CodeTable.train(input, maxLength);
+		table.write(output);
+		log.printf("Saved code table %08x.%n", table.getId());
+	}
+
+	/**
+	 * Compress the input with a pre-trained code table. The input is read
+	 * only once, and the file stores the table ID instead of a code.
+	 */
+	public void compressWithTable(boolean force, CodeTable table) {
+		long t = Stats.now();
+		tree = new HuffTree(table);
+		stats.add(Stats.TABLE, t);
+		long sizeU = new File(input).length() * 8;
+
+		log.println("Writing compressed file...");
+		stats.setFormat("table");
+		try {
+			// no bit count header: the file ends with its own padding count
+			FileOutputStream file = new FileOutputStream(output);
+			BitWriter out = new BitWriter(file);
+			tree.writeWithTable(input, out, table.getId(), stats);
+			t = Stats.now();
+			out.flush();
+			file.close();
+			stats.add(Stats.IO, t);
+		} catch (Exception e) {
+			throw failed(e);
+		}
+		freq = tree.getFreqs();
+
+		long sizeC = new File(output).length() * 8;
+		if (sizeC >= sizeU) {
+			if (force) {
+				log.println("Forced compression.");
+			} else {
+				new File(output).delete();
+				log
+						.println("The file cannot be compressed to a smaller size.");
+			}
+		}
+	}
+
+	/**
+	 * Compress the input with adaptive Huffman codes. The input is read once,
+	 * front to back, so it may be a pipe, and no code table is stored. An
+	 * output that is not smaller is only deleted when the input is a regular
+	 * file; otherwise it is the only copy of the data and is kept.
+	 */
+	public void compressAdaptive(boolean force) {
+		BinaryFile binaryFile = new BinaryFile(output, 'w');
+		BitWriter out = binaryFile.getWriter();
+		AdaptiveHuffman coder = new AdaptiveHuffman();
+
+		freq = new long[256];
+		tree = null;
+		noTree = "The Huffman tree changes with every character.";
+		long sizeU = 0;
+
+		log.println("Writing compressed file...");
+		stats.setFormat("adaptive");
+		long t = Stats.now();
+		binaryFile.writeChar('H');
+		binaryFile.writeChar('F');
+		binaryFile.writeChar(AdaptiveHuffman.FORMAT_ADAPTIVE);
+		stats.addHeaderBits(8 * (BinaryFile.HEADER_SIZE + 3));
+		t = stats.add(Stats.HEADER, t);
+		try {
+			FileInputStream in = new FileInputStream(input);
+			byte[] block = new byte[1 << 16];
+			int n;
+			while ((n = in.read(block)) > 0) {
+				t = stats.add(Stats.IO, t);
+				for (int i = 0; i < n; i++) {
+					int c = block[i] & 0xFF;
+					coder.encode(c, out);
+					freq[c]++;
+				}
+				sizeU += 8L * n;
+				t = stats.add(Stats.CODE, t);
+			}
+			in.close();
+			// a pipe has no length to take afterwards
+			stats.setUncompressedBytes(sizeU / 8);
+		} catch (Exception e) {
+			throw failed(e);
+		}
+		coder.encode(AdaptiveHuffman.END, out);
+		binaryFile.close();
+		stats.add(Stats.IO, t);
+
+		long sizeC = new File(output).length() * 8;
+		if (sizeC >= sizeU) {
+			if (force) {
+				log.println("Forced compression.");
+			} else if (!new File(input).isFile()) {
+				// a pipe cannot be read again, so the output is the only copy
+				log.println("The input was not made smaller, but cannot be read again; keeping the output.");
+			} else {
+				new File(output).delete();
+				log
+						.println("The file cannot be compressed to a smaller size.");
+			}
+		}
+	}
+
+	/**
+	 * Compress the input with a single code table. If sampleChunks is more
+	 * than 0, the table is built from that many sampled chunks of the input
+	 * instead of from a full counting pass; the compressed size can then only
+	 * be estimated before the file is written.
+	 */
+	public void compress(boolean force, int maxLength, int sampleChunks) {
+		/* Calculate Character Frequencies */
+
+		log.println("Building Huffman tree...");
+
+		long t = Stats.now();
+		long numChars;
+		if (sampleChunks > 0) {
+			freq = Histogram.sample(input, sampleChunks);
+			numChars = new File(input).length();
+		} else {
+			freq = Histogram.count(input);
+			numChars = 0;
+			for (int c = 0; c < 256; c++) {
+				numChars += freq[c];
+			}
+		}
+
+		t = stats.add(Stats.HISTOGRAM, t);
 
 		// Size of uncompressed file (bits) = (# of chars in input file) * 8
 		long sizeU = numChars * 8;
 
 		/* Build Huffman Tree */
-		tree = new HuffTree(sortedFreq);
+		tree = new HuffTree(freq);
 		tree.buildCompressionTree();
+		t = stats.add(Stats.TREE, t);
 
 		/* Build Lookup Table */
-		System.out.println("Building lookup table...");
-		encodingTable = tree.buildEncodingTable();
-
-		// Size of the compressed file (bits)
-		long sizeC = 0;
+		log.println("Building lookup table...");
+		tree.makeCanonical(maxLength);
+		int[] lengths = tree.getCodeLengths();
+		stats.add(Stats.TABLE, t);
 
 		/* Check File Size */
 
-		for (Character c : freq.keySet()) {
-			// (frequency of c) * (size of the encoding for c)
-			// Size of tree (1 bit per internal node, 9 bits per leaf)
-			// 16 bits for magic number & 32 bits for header info
-			sizeC += (freq.get(c) * encodingTable.get(c).size());
-		}
-//		System.out.println(sizeC + " bits characters");
-
-		// 8 more for padding count
-		sizeC += tree.getSize() + 48 + 8;
-
-		// System.out.println("******************");
-//		System.out.println(sizeU + " bits (Uncompressed)");
-//		System.out.println(sizeC + " bits (Compressed before padding)");
+		// Size of the compressed file (bits)
+		// (frequency of c) * (size of the encoding for c) for every c
+		long sizeC = CanonicalCode.encodedBits(freq, lengths);
 
-		// make file size a multiple of 8
-		int padding = 0;
-		if (sizeC % 8 != 0) {
-			padding = 8 - (int) sizeC % 8;
-			sizeC += padding;
-		}
+		// 96 bits for header info, 24 for magic number & format,
+		// 64 for the character count, plus the code lengths
+		sizeC += 96 + 24 + 64 + CanonicalCode.headerBits(lengths);
 
-//		System.out.println(sizeC + " bits (Compressed) (padding = " + padding
-//				+ ")");
+		// the last byte is padded out
+		sizeC = (sizeC + 7) / 8 * 8;
+		reportLimitCost(maxLength, tree.getLimitCost(), sizeC);
 
 		if ((sizeC < sizeU) || force) {
 			BinaryFile binaryFile = new BinaryFile(output, 'w');
 			if(sizeC >= sizeU) {
-				System.out.println("Forced compression.");
+				log.println("Forced compression.");
 			}
-			System.out.println("Writing compressed file...");
-			tree.writeCompressed(input, binaryFile, padding);
+			log.println("Writing compressed file...");
+			log.println("Writing code lengths...");
+			log.println("Encoding text...");
+			stats.setFormat("canonical");
+			stats.addHeaderBits(8 * BinaryFile.HEADER_SIZE);
+			tree.writeCompressed(input, binaryFile, numChars, stats);
+			t = Stats.now();
 			binaryFile.close();
+			stats.add(Stats.IO, t);
+
+			if (sampleChunks > 0) {
+				// the estimate may have been off either way
+				long actual = new File(output).length() * 8;
+				log.printf("Estimated compressed size: %d bytes, actual: %d bytes (%+.3f%%).%n",
+						sizeC / 8, actual / 8, 100.0 * (actual - sizeC) / Math.max(8, sizeC));
+				if (actual >= sizeU && !force) {
+					new File(output).delete();
+					log
+							.println("The file cannot be compressed to a smaller size.");
+				}
+			}
 		} else {
-			System.out
+			log
 					.println("The file cannot be compressed to a smaller size.");
 		}
 
 	}
 
-	public static boolean decompress() {
+	public boolean decompress(int threads, boolean mapped, CodeTable table) {
 
+		if (isTableFile(input)) {
+			return decompressWithTable(table);
+		}
+		long t = Stats.now();
 		BinaryFile binaryFile = new BinaryFile(input, 'r');
 		char h = binaryFile.readChar();
 		char f = binaryFile.readChar();
 
 		if (h != 'H' || f != 'F') {
-			System.out
+			log
 					.println("This is not a compressed file. Cannot decopress.");
 			binaryFile.close();
 			return false;
 		}
 
-		int padding = (int) binaryFile.readChar();
-		
+		int format = (int) binaryFile.readChar();
+		BitReader in = binaryFile.getReader();
+
 		tree = new HuffTree();
+		TextFile textFile;
 
-		/* Build Lookup Table */
+		if (format == BlockCodec.FORMAT_BLOCKS
+				&& (mapped || new File(input).length() >= MAP_THRESHOLD)) {
+			binaryFile.close();
+			stats.setFormat("blocks");
+			stats.addHeaderBits(8 * (BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE + 1));
+			stats.add(Stats.HEADER, t);
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding blocks...");
+			decompressMapped(textFile, threads);
+			t = Stats.now();
+			textFile.close();
+			stats.add(Stats.IO, t);
+			return true;
+		} else if (format == BlockCodec.FORMAT_BLOCKS) {
+			stats.setFormat("blocks");
+			stats.addHeaderBits(8 * (BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE + 1));
+			stats.add(Stats.HEADER, t);
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding blocks...");
+			decompressBlocks(binaryFile, textFile, threads);
+		} else if (format == CodeTable.FORMAT_TABLE) {
+			// files from before the compact layout of decompressWithTable
+			int id = (int) binaryFile.readBits(32);
+			if (table == null || table.getId() != id) {
+				log.printf("This file needs code table %08x (-T table). Cannot decompress.%n", id);
+				binaryFile.close();
+				return false;
+			}
+			stats.setFormat("table");
+			stats.addHeaderBits(8 * BinaryFile.HEADER_SIZE + in.getBitsRead());
+			t = stats.add(Stats.HEADER, t);
+			tree = new HuffTree(table);
+			stats.add(Stats.TABLE, t);
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding text...");
+			// the text runs to the last bit of the file
+			tree.decodeText(binaryFile, textFile, 0, stats);
+		} else if (format == AdaptiveHuffman.FORMAT_ADAPTIVE) {
+			stats.setFormat("adaptive");
+			stats.addHeaderBits(8 * BinaryFile.HEADER_SIZE + in.getBitsRead());
+			stats.add(Stats.HEADER, t);
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding text...");
+			decompressAdaptive(binaryFile, textFile);
+		} else if (format == HuffTree.FORMAT_CANONICAL) {
+			long numChars = binaryFile.readBits(32) << 32 | binaryFile.readBits(32);
+			stats.setFormat("canonical");
+			t = stats.add(Stats.HEADER, t);
 
-		System.out.println("Building decompression tree...");
-		tree.buildDecompressionTree(binaryFile);
-		System.out.println("Building decoding table...");
-		decodingTable = tree.buildDecodingTable();
+			/* Build Lookup Table */
 
-		TextFile textFile = new TextFile(output, 'w');
-		System.out.println("Decoding text...");
-		tree.decodeText(binaryFile, textFile, padding);
-		freq = tree.getFreqs();
+			log.println("Building decoding table...");
+			tree.readCodeLengths(in);
+			stats.addHeaderBits(8 * BinaryFile.HEADER_SIZE + in.getBitsRead());
+			stats.add(Stats.TABLE, t);
 
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding text...");
+			tree.decodeSymbols(binaryFile, textFile, numChars, stats);
+		} else {
+			// files from before the format byte hold their padding count here
+			int padding = format;
+			stats.setFormat("legacy");
+			t = stats.add(Stats.HEADER, t);
+
+			/* Build Lookup Table */
+
+			log.println("Building decompression tree...");
+			tree.buildDecompressionTree(binaryFile);
+			stats.addHeaderBits(8 * BinaryFile.HEADER_SIZE + in.getBitsRead());
+			t = stats.add(Stats.TREE, t);
+			log.println("Building decoding table...");
+			tree.buildDecodingTable();
+			stats.add(Stats.TABLE, t);
+
+			textFile = new TextFile(output, 'w');
+			log.println("Decoding text...");
+			tree.decodeText(binaryFile, textFile, padding, stats);
+		}
+		if (tree != null) {
+			freq = tree.getFreqs();
+		}
+
+		t = Stats.now();
+		textFile.close();
 		binaryFile.close();
+		stats.add(Stats.IO, t);
 		
 		return true;
 		
 	}
 
-	public static void printVerbose(boolean compress) {
+	/**
+	 * @return Whether filename starts with the magic number and format of a
+	 *         file written by compressWithTable, which has no bit count header
+	 */
+	private static boolean isTableFile(String filename) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			boolean table = file.length() > 7 && BinaryFile.readMagic(file, CodeTable.FORMAT_TABLE);
+			file.close();
+			return table;
+		} catch (Exception e) {
+			throw failed(e);
+		}
+	}
+
+	/**
+	 * Decompress a file written by compressWithTable. The number of bits of
+	 * text follows from the length of the file and the padding count in its
+	 * last 3 bits.
+	 */
+	private boolean decompressWithTable(CodeTable table) {
+		long t = Stats.now();
+		stats.setFormat("table");
+		try {
+			RandomAccessFile file = new RandomAccessFile(input, "r");
+			file.seek(file.length() - 1);
+			int padding = file.read() & 7;
+			file.seek(3);
+			int id = file.readInt();
+			if (table == null || table.getId() != id) {
+				log.printf("This file needs code table %08x (-T table). Cannot decompress.%n", id);
+				file.close();
+				return false;
+			}
+			long bits = (file.length() - 7) * 8 - padding - 3;
+			Assert.notFalse(bits >= 0, "Damaged compressed file");
+			BitReader in = new BitReader(Channels.newInputStream(file.getChannel()), bits);
+			stats.addHeaderBits(7 * 8 + padding + 3);
+			t = stats.add(Stats.HEADER, t);
+			tree = new HuffTree(table);
+			stats.add(Stats.TABLE, t);
+			TextFile textFile = new TextFile(output, 'w');
+			log.println("Decoding text...");
+			tree.decodeText(in, textFile, stats);
+			freq = tree.getFreqs();
+			t = Stats.now();
+			textFile.close();
+			file.close();
+			stats.add(Stats.IO, t);
+		} catch (Exception e) {
+			throw failed(e);
+		}
+		return true;
+	}
+
+	private void decompressAdaptive(BinaryFile binaryFile, TextFile textFile) {
+		BitReader in = binaryFile.getReader();
+		AdaptiveHuffman coder = new AdaptiveHuffman();
+		byte[] block = new byte[1 << 16];
+		int n = 0;
+
+		freq = new long[256];
+		tree = null;
+		noTree = "The Huffman tree changes with every character.";
+
+		long t = Stats.now();
+		int c;
+		while ((c = coder.decode(in)) != AdaptiveHuffman.END) {
+			freq[c]++;
+			block[n++] = (byte) c;
+			if (n == block.length) {
+				t = stats.add(Stats.CODE, t);
+				textFile.write(block, 0, n);
+				t = stats.add(Stats.IO, t);
+				n = 0;
+			}
+		}
+		t = stats.add(Stats.CODE, t);
+		textFile.write(block, 0, n);
+		stats.add(Stats.IO, t);
+	}
+
+	/**
+	 * Decompress a file in the block format, read through binaryFile.
+	 */
+	private void decompressBlocks(final BinaryFile binaryFile, TextFile textFile, int threads) {
+		final BitReader in = binaryFile.getReader();
+		int blockSize = (int) in.readBits(32);
+		decodeBlocks(new BlockSource() {
+			public BlockCodec.Block next() {
+				BlockCodec.Block block = new BlockCodec.Block();
+				block.type = (int) in.readBits(8);
+				if (block.type != BlockCodec.TYPE_END) {
+					block.rawLength = (int) in.readBits(32);
+					block.payloadLength = (int) in.readBits(32);
+					Assert.notFalse(block.payloadLength >= 0 && 8L * block.payloadLength <= binaryFile.bitsLeft(),
+							"Damaged block header");
+				}
+				return block;
+			}
+
+			public ByteBuffer payload(BlockCodec.Block block) {
+				byte[] payload = new byte[block.payloadLength];
+				in.readBytes(payload, 0, payload.length);
+				return ByteBuffer.wrap(payload);
+			}
+		}, blockSize, textFile, threads);
+	}
+
+	/**
+	 * Decompress a file in the block format through a memory-mapped view of
+	 * it, so that payloads are decoded straight from the mapping.
+	 */
+	private void decompressMapped(TextFile textFile, int threads) {
+		final MappedFile in = new MappedFile(input);
+		final long[] inPos = { BinaryFile.headerSize(in.slice(0, 4).getInt(0)) + BlockCodec.FILE_HEADER_SIZE };
+		Assert.notFalse(inPos[0] <= in.size(), "Unexpected end of file");
+		// the block size ends the file header
+		int blockSize = in.slice(inPos[0] - 4, 4).getInt(0);
+		decodeBlocks(new BlockSource() {
+			public BlockCodec.Block next() {
+				BlockCodec.Block block = new BlockCodec.Block();
+				// a file cut short must not end in a made-up TYPE_END
+				Assert.notFalse(inPos[0] < in.size(), "Unexpected end of file");
+				block.type = in.slice(inPos[0], 1).get(0);
+				if (block.type != BlockCodec.TYPE_END) {
+					Assert.notFalse(inPos[0] + BlockCodec.BLOCK_HEADER_SIZE <= in.size(),
+							"Unexpected end of file");
+					ByteBuffer header = in.slice(inPos[0], BlockCodec.BLOCK_HEADER_SIZE);
+					block.rawLength = header.getInt(1);
+					block.payloadLength = header.getInt(5);
+					inPos[0] += BlockCodec.BLOCK_HEADER_SIZE;
+					Assert.notFalse(block.payloadLength >= 0 && block.payloadLength <= in.size() - inPos[0],
+							"Damaged block header");
+				}
+				return block;
+			}
+
+			public ByteBuffer payload(BlockCodec.Block block) {
+				ByteBuffer payload = in.slice(inPos[0], block.payloadLength);
+				inPos[0] += block.payloadLength;
+				return payload;
+			}
+		}, blockSize, textFile, threads);
+		in.close();
+	}
+
+	/**
+	 * The blocks of a file in the block format, one after the other
+	 */
+	private interface BlockSource {
+		/**
+		 * @return The type, character count and payload length of the next
+		 *         block, or a block of type TYPE_END after the last. The
+		 *         payload length is no more than the bytes left in the file.
+		 */
+		BlockCodec.Block next();
+
+		/**
+		 * @return The payload of the block next returned last
+		 */
+		ByteBuffer payload(BlockCodec.Block block);
+	}
+
+	/**
+	 * Decode the blocks of a file. Blocks are read in order, but decoded on a
+	 * pool of worker threads, each of which writes its block straight to the
+	 * block's position in the output file. Every block holds between 1 and
+	 * blockSize characters; a length outside that is damage, and is caught
+	 * before anything is allocated for it.
+	 */
+	private void decodeBlocks(BlockSource source, int blockSize, final TextFile textFile, int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<long[]>> pending = new ArrayDeque<Future<long[]>>();
+
+		freq = new long[256];
+		tree = null;
+		noTree = "Every block has its own Huffman tree.";
+		blockTypes = new long[BlockCodec.TYPE_NAMES.length];
+
+		try {
+			long position = 0;
+			BlockCodec.Block block = source.next();
+			while (block.type != BlockCodec.TYPE_END || !pending.isEmpty()) {
+				// keep a couple of blocks per thread in flight
+				while (block.type != BlockCodec.TYPE_END && pending.size() < 2 * threads) {
+					final int blockType = block.type;
+					Assert.notFalse(blockType > 0 && blockType < blockTypes.length,
+							"Unknown block type " + blockType);
+					blockTypes[blockType]++;
+					final int rawLength = block.rawLength;
+					Assert.notFalse(rawLength >= 1 && rawLength <= blockSize, "Damaged block header");
+					final long blockPosition = position;
+					long t = Stats.now();
+					final ByteBuffer payload = source.payload(block);
+					stats.add(Stats.IO, t);
+					pending.add(pool.submit(new Callable<long[]>() {
+						public long[] call() {
+							byte[] data = new byte[rawLength];
+							BlockCodec.decode(blockType, payload, data, 0, rawLength, stats);
+							long t = Stats.now();
+							textFile.writeAt(blockPosition, data, 0, rawLength);
+							t = stats.add(Stats.IO, t);
+							long[] counts = Histogram.count(data, 0, rawLength);
+							stats.add(Stats.HISTOGRAM, t);
+							return counts;
+						}
+					}));
+					position += rawLength;
+					block = source.next();
+				}
+				if (!pending.isEmpty()) {
+					long[] counts = pending.remove().get();
+					for (int c = 0; c < 256; c++) {
+						freq[c] += counts[c];
+					}
+				}
+			}
+		} catch (Exception e) {
+			throw failed(e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void printVerbose(boolean compress) {
 		/* Print the frequency of each character in the input file */
 
 		if (compress) {
-			System.out.println("ASCII Char\tFrequency");
-			System.out.println("-------------------------");
-			for (Character c : freq.keySet()) {
-				System.out.println((int) c + "\t\t" + freq.get(c));
+			log.println("ASCII Char\tFrequency");
+			log.println("-------------------------");
+			for (int c = 0; c < 256; c++) {
+				if (freq[c] > 0) {
+					log.println(c + "\t\t" + freq[c]);
+				}
 			}
-			System.out.println("\n");
+			log.println("\n");
 		} else {
-			System.out.println("ASCII Char\tFrequency");
-			System.out.println("-------------------------");
-			for (Character c : freq.keySet()) {
-				System.out.println((int) c + "\t\t" + freq.get(c));
+			log.println("ASCII Char\tFrequency");
+			log.println("-------------------------");
+			for (int c = 0; c < 256; c++) {
+				if (freq[c] > 0) {
+					log.println(c + "\t\t" + freq[c]);
+				}
 			}
-			System.out.println("\n");
+			log.println("\n");
+		}
+
+		if (tree == null) {
+			log.println(noTree);
+			if (blockTypes != null) {
+				log.println();
+				log.println("Block type\tBlocks");
+				log.println("-------------------------");
+				for (int type = 0; type < blockTypes.length; type++) {
+					if (blockTypes[type] > 0) {
+						log.println(BlockCodec.TYPE_NAMES[type] + "\t" + blockTypes[type]);
+					}
+				}
+			}
+			return;
 		}
 
 		/* Print the Huffman tree */
-		System.out.println("Huffman tree");
-		System.out.println("------------");
+		log.println("Huffman tree");
+		log.println("------------");
 		tree.printTree((tree.height() / 2));
-		System.out.println("\n");
+		log.println("\n");
 
 		/* Print the Huffman codes for each character that has a code */
 
 		if (compress) {
-			System.out.println("ASCII Char\tHuffman Code");
-			System.out.println("----------------------------");
+			log.println("ASCII Char\tHuffman Code");
+			log.println("----------------------------");
 			
-			for (Character c : encodingTable.keySet()) {
-				if(c != null) {
-					// dummy element for 1 type of element in file
-					System.out.print((int) c + "\t\t");
-					ArrayList<Integer> codes = encodingTable.get(c);
-					for (Integer i : codes) {
-						System.out.print(i);
-					}
-					System.out.println();
+			for (int c = 0; c < 256; c++) {
+				String code = tree.getCode((char) c);
+				if (code != null) {
+					log.println(c + "\t\t" + code);
 				}
 			}
 		} else {
-			System.out.println("Huffman Code\tASCII Char");
-			System.out.println("-------------------------");
-			for (String code : decodingTable.keySet()) {
-				System.out.print(code);
-				System.out.print("\t\t" + (int) (decodingTable.get(code)));
-				System.out.println();
+			log.println("Huffman Code\tASCII Char");
+			log.println("-------------------------");
+			for (int c = 0; c < 256; c++) {
+				String code = tree.getCode((char) c);
+				if (code != null) {
+					log.print(code);
+					log.print("\t\t" + c);
+					log.println();
+				}
 			}
 		}
 
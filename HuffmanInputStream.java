@@ -0,0 +1,126 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that decompresses data in the block format, as written by
+ * HuffmanOutputStream or by Huffman -c. One block is decoded at a time, so
+ * memory use is bounded by the block size however long the stream is.
+ */
+public class HuffmanInputStream extends FilterInputStream {
+
+	private DataInputStream data;
+	private int blockSize;
+	private byte[] block;
+	private byte[] payload;
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	public HuffmanInputStream(InputStream in) throws IOException {
+		super(in);
+		data = new DataInputStream(in);
+		if (data.readInt() == BinaryFile.LENGTH_64) {
+			data.readLong(); // bit count
+		}
+		if (!BinaryFile.readMagic(data, BlockCodec.FORMAT_BLOCKS)) {
+			throw new IOException("Not a compressed file in the block format");
+		}
+		// allocated as blocks come, so a damaged size costs nothing
+		blockSize = data.readInt();
+		block = new byte[0];
+		payload = new byte[0];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && !nextBlock()) {
+			return -1;
+		}
+		return block[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == limit && !nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && (pos < limit || nextBlock())) {
+			int step = (int) Math.min(n - skipped, limit - pos);
+			pos += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	private boolean nextBlock() throws IOException {
+		while (!eof) {
+			int type = data.readUnsignedByte();
+			if (type == BlockCodec.TYPE_END) {
+				eof = true;
+				break;
+			}
+			int rawLength = data.readInt();
+			int payloadLength = data.readInt();
+			if (rawLength < 1 || rawLength > blockSize || payloadLength < 0) {
+				throw new IOException("Damaged block header");
+			}
+			if (payload.length < payloadLength) {
+				// read what is there before making room for all of it, as
+				// the length may be damaged
+				byte[] grown = data.readNBytes(payloadLength);
+				if (grown.length < payloadLength) {
+					throw new EOFException();
+				}
+				payload = grown;
+			} else {
+				data.readFully(payload, 0, payloadLength);
+			}
+			if (block.length < rawLength) {
+				block = new byte[rawLength];
+			}
+			BlockCodec.decode(type, ByteBuffer.wrap(payload, 0, payloadLength),
+					block, 0, rawLength, Stats.NONE);
+			pos = 0;
+			limit = rawLength;
+			if (limit > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,99 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that compresses everything written to it in the block
+ * format. Data is collected into a block of blockSize bytes, and each full
+ * block is coded and written on its own, so memory use is bounded by the
+ * block size however long the stream is. The stream cannot go back to fill
+ * in the bit count in front of the file, so it writes the marker
+ * BinaryFile.LENGTH_UNKNOWN there instead.
+ */
+public class HuffmanOutputStream extends FilterOutputStream {
+
+	private byte[] block;
+	private int count;
+	private boolean finished;
+
+	public HuffmanOutputStream(OutputStream out) throws IOException {
+		this(out, BlockCodec.DEFAULT_BLOCK_SIZE);
+	}
+
+	public HuffmanOutputStream(OutputStream out, int blockSize) throws IOException {
+		super(out);
+		Assert.notFalse(blockSize > 0, "Block size must be positive");
+		block = new byte[blockSize];
+		ByteBuffer header = ByteBuffer.allocate(4 + BlockCodec.FILE_HEADER_SIZE);
+		BitWriter bits = new BitWriter(header);
+		bits.writeBits(BinaryFile.LENGTH_UNKNOWN, 32);
+		BlockCodec.writeFileHeader(bits, blockSize);
+		bits.flush();
+		out.write(header.array());
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == block.length) {
+			writeBlock();
+		}
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == block.length) {
+				writeBlock();
+			}
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Code the data written so far as a block, even if it is short, and flush
+	 * the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBlock();
+		out.flush();
+	}
+
+	/**
+	 * Code the data written so far and write the end of the compressed data,
+	 * without closing the underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			writeBlock();
+			out.write(BlockCodec.TYPE_END);
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	private void writeBlock() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		BlockCodec.Block coded = BlockCodec.encode(block, 0, count, CanonicalCode.MAX_LENGTH, false, Stats.NONE);
+		ByteBuffer header = ByteBuffer.allocate(BlockCodec.BLOCK_HEADER_SIZE);
+		BitWriter bits = new BitWriter(header);
+		BlockCodec.writeHeader(bits, coded);
+		bits.flush();
+		out.write(header.array());
+		out.write(coded.payload);
+		count = 0;
+	}
+}
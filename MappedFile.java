@@ -0,0 +1,64 @@
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a file through memory-mapped windows. A single mapping
+ * is limited to 2 GB, so the file is mapped WINDOW_SIZE bytes at a time and
+ * a new window is mapped whenever a slice falls outside the current one.
+ * Slices keep their window mapped for as long as they are in use.
+ */
+public class MappedFile {
+
+	public static final long WINDOW_SIZE = 1L << 30;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long size;
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	public MappedFile(String filename) {
+		try {
+			file = new RandomAccessFile(filename, "r");
+			channel = file.getChannel();
+			size = channel.size();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return The length bytes of the file starting at position, without
+	 *         copying them
+	 */
+	public ByteBuffer slice(long position, int length) {
+		if (window == null || position < windowStart
+				|| position + length > windowStart + window.capacity()) {
+			try {
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.max(length, Math.min(WINDOW_SIZE, size - position)));
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				System.exit(0);
+			}
+		}
+		return window.slice((int) (position - windowStart), length);
+	}
+
+	public void close() {
+		try {
+			file.close();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+	}
+}
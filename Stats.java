@@ -0,0 +1,348 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Timing and size figures for compressing or decompressing one file.
+ *
+ * The time spent in each phase (counting, building the tree, building the
+ * code or decoding table, the header, coding the text and file I/O) is added
+ * up as the file is coded. Workers of the block formats add their time from
+ * their own threads, so with several threads the phases can add up to more
+ * than the wall-clock time of the run.
+ *
+ * When the file is done, finish commits a PhaseEvent for every phase and a
+ * RunEvent for the file to the JDK Flight Recorder, so a recording started
+ * with -XX:StartFlightRecording holds them. They cost next to nothing when
+ * no recording is running. toJson gives the same figures as one line of
+ * JSON, for --stats json.
+ *
+ * The peak heap use is that of the whole JVM, so it is only given for a run
+ * that codes a single file. A batch run gives it once, in its own line, as
+ * every file of the batch would report the same figure.
+ *
+ * Code that is not timing anything passes NONE, which does not read the
+ * clock and keeps nothing.
+ */
+public class Stats {
+
+	public static final int HISTOGRAM = 0;
+	public static final int TREE = 1;
+	public static final int TABLE = 2;
+	public static final int HEADER = 3;
+	public static final int CODE = 4;
+	public static final int IO = 5;
+
+	private static final String[] PHASES = { "histogram", "tree", "table", "header", "code", "io" };
+
+	/**
+	 * Time spent in one phase of coding a file, summed over all threads
+	 */
+	@Name("Huffman.Phase")
+	@Label("Huffman Phase")
+	@Category("Huffman")
+	@StackTrace(false)
+	@Description("Time spent in one phase of coding a file, summed over all threads")
+	static class PhaseEvent extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+
+	/**
+	 * Compressing or decompressing one file
+	 */
+	@Name("Huffman.Run")
+	@Label("Huffman Run")
+	@Category("Huffman")
+	@StackTrace(false)
+	@Description("Compressing or decompressing one file")
+	static class RunEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Format")
+		String format;
+
+		@Label("Input")
+		String input;
+
+		@Label("Output")
+		String output;
+
+		@Label("Written")
+		@Description("False if the output was not written, as it would not have been smaller")
+		boolean written;
+
+		@Label("Uncompressed Size")
+		@DataAmount
+		long uncompressedBytes;
+
+		@Label("Compressed Size")
+		@DataAmount
+		long compressedBytes;
+
+		@Label("Header Size")
+		@DataAmount
+		long headerBytes;
+
+		@Label("Bits per Symbol")
+		double bitsPerSymbol;
+
+		@Label("Bytes per Second")
+		long bytesPerSecond;
+
+		@Label("Peak Heap")
+		@Description("Peak heap use of the JVM, or 0 in batch mode")
+		@DataAmount
+		long peakHeap;
+	}
+
+	private final boolean compress;
+	private final String input;
+	private final String output;
+	private String format = "none";
+
+	/**
+	 * Figures that go nowhere, for callers that do not keep any
+	 */
+	public static final Stats NONE = new Stats();
+
+	private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+	private final AtomicLong headerBits = new AtomicLong();
+	private final RunEvent run = new RunEvent();
+	private final long start;
+
+	/* Figures known once the file is done */
+	private long nanosTotal;
+	private boolean written;
+	private long uncompressed = -1; // -1: the length of the file
+	private long compressed;
+	private long peakHeap = -1; // -1: not measured
+
+	/**
+	 * Start timing a file.
+	 *
+	 * @param compress
+	 *            True for compressing, false for decompressing
+	 */
+	public Stats(boolean compress, String input, String output) {
+		this.compress = compress;
+		this.input = input;
+		this.output = output;
+		run.begin();
+		start = System.nanoTime();
+	}
+
+	private Stats() {
+		compress = true;
+		input = null;
+		output = null;
+		start = 0;
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Add the time since start to a phase.
+	 *
+	 * @return The time now, which starts the next phase
+	 */
+	public long add(int phase, long start) {
+		if (this == NONE) {
+			return start;
+		}
+		long end = System.nanoTime();
+		nanos.addAndGet(phase, end - start);
+		return end;
+	}
+
+	/**
+	 * Add bits of the compressed file that hold no text: the magic number,
+	 * lengths and code tables.
+	 */
+	public void addHeaderBits(long bits) {
+		if (this == NONE) {
+			return;
+		}
+		headerBits.addAndGet(bits);
+	}
+
+	/**
+	 * Name the format of the compressed file, such as "blocks"
+	 */
+	public void setFormat(String format) {
+		if (this == NONE) {
+			return;
+		}
+		this.format = format;
+	}
+
+	/**
+	 * Give the number of uncompressed bytes read, for an input whose length
+	 * cannot be taken from the file, such as a pipe.
+	 */
+	public void setUncompressedBytes(long bytes) {
+		if (this == NONE) {
+			return;
+		}
+		uncompressed = bytes;
+	}
+
+	/**
+	 * Give the peak heap use, for a run that codes only this file.
+	 */
+	public void setPeakHeap(long bytes) {
+		if (this == NONE) {
+			return;
+		}
+		peakHeap = bytes;
+	}
+
+	/**
+	 * Stop timing, take the file sizes and commit the events.
+	 */
+	public void finish() {
+		nanosTotal = System.nanoTime() - start;
+		long in = new File(input).length();
+		long out = new File(output).length();
+		written = new File(output).exists();
+		if (uncompressed < 0) {
+			uncompressed = compress ? in : out;
+		}
+		compressed = compress ? out : in;
+
+		for (int phase = 0; phase < PHASES.length; phase++) {
+			PhaseEvent event = new PhaseEvent();
+			if (event.shouldCommit()) {
+				event.file = input;
+				event.phase = PHASES[phase];
+				event.time = nanos.get(phase);
+				event.commit();
+			}
+		}
+		run.end();
+		if (run.shouldCommit()) {
+			run.operation = compress ? "compress" : "decompress";
+			run.format = format;
+			run.input = input;
+			run.output = output;
+			run.written = written;
+			run.uncompressedBytes = uncompressed;
+			run.compressedBytes = compressed;
+			run.headerBytes = getHeaderBytes();
+			run.bitsPerSymbol = getBitsPerSymbol();
+			run.bytesPerSecond = (long) getBytesPerSecond();
+			run.peakHeap = Math.max(0, peakHeap);
+			run.commit();
+		}
+	}
+
+	/**
+	 * The peak heap use of the JVM so far, summed over the heap pools
+	 */
+	public static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	public long getNanos(int phase) {
+		return nanos.get(phase);
+	}
+
+	public long getHeaderBytes() {
+		return (headerBits.get() + 7) / 8;
+	}
+
+	/**
+	 * @return Bits of compressed file per character of text
+	 */
+	public double getBitsPerSymbol() {
+		return uncompressed == 0 ? 0 : 8.0 * compressed / uncompressed;
+	}
+
+	/**
+	 * @return Uncompressed bytes per second of the whole run
+	 */
+	public double getBytesPerSecond() {
+		return uncompressed * 1e9 / Math.max(1, nanosTotal);
+	}
+
+	/**
+	 * The figures of a finished file as one line of JSON.
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"operation\":\"").append(compress ? "compress" : "decompress").append('"');
+		json.append(",\"format\":").append(quote(format));
+		json.append(",\"input\":").append(quote(input));
+		json.append(",\"output\":").append(quote(output));
+		json.append(",\"written\":").append(written);
+		json.append(",\"uncompressedBytes\":").append(uncompressed);
+		json.append(",\"compressedBytes\":").append(compressed);
+		json.append(",\"headerBytes\":").append(getHeaderBytes());
+		json.append(",\"headerRatio\":").append(String.format(Locale.ROOT, "%.6f",
+				compressed == 0 ? 0.0 : (double) getHeaderBytes() / compressed));
+		json.append(",\"ratio\":").append(String.format(Locale.ROOT, "%.6f",
+				(double) compressed / Math.max(1, uncompressed)));
+		json.append(",\"bitsPerSymbol\":").append(String.format(Locale.ROOT, "%.4f", getBitsPerSymbol()));
+		json.append(",\"bytesPerSecond\":").append((long) getBytesPerSecond());
+		if (peakHeap >= 0) {
+			json.append(",\"peakHeapBytes\":").append(peakHeap);
+		}
+		json.append(",\"totalNanos\":").append(nanosTotal);
+		json.append(",\"phaseNanos\":{");
+		for (int phase = 0; phase < PHASES.length; phase++) {
+			if (phase > 0) {
+				json.append(',');
+			}
+			json.append('"').append(PHASES[phase]).append("\":").append(nanos.get(phase));
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+	private static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /* Author: David Galles */
 
@@ -20,12 +21,14 @@ public class TextFile {
 			} else if (readOrWrite == 'r' || readOrWrite == 'R') {
 				inputFile = true;
 				file = new RandomAccessFile(filename, "r");
+				length = file.length();
 			}
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			System.exit(0);
 		}
 		position = 0;
+		buffer = new byte[BUFFER_SIZE];
 	}
 /**
  * Checks to see if we are at the end of a file.  This method is only 
@@ -37,13 +40,22 @@ public class TextFile {
  */
 	public boolean EndOfFile() {
 		Assert.notFalse(inputFile, "EndOfFile only relevant for input files");
-		try {
-			return position == file.length();
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			System.exit(0);
-		}
-		return true;
+		return position == length;
+	}
+
+/**
+ * The length of an input file, read once when the file is opened.
+ * @return The number of bytes in the input file
+ */
+	public long length() {
+		return length;
+	}
+
+/**
+ * @return The number of bytes read from an input file so far
+ */
+	public long position() {
+		return position;
 	}
 
 /**
@@ -58,18 +70,56 @@ public class TextFile {
  * @return The next character from an input file
  */    
 	public char readChar() {
-		char returnchar = 0;
+		Assert.notFalse(inputFile, "Can only read from input files!");
+		Assert.notFalse(!EndOfFile(), "Read past end of file!");
+		if (bufferPos == bufferEnd) {
+			fillBuffer();
+		}
+		position++;
+		return (char) (buffer[bufferPos++] & 0xFF);
+	}
+
+/**
+ * Read up to len bytes from an input file into b, starting at b[off].
+ * This method is only valid for input files.
+ * @return The number of bytes read, or -1 at the end of the file
+ */
+	public int read(byte[] b, int off, int len) {
+		Assert.notFalse(inputFile, "Can only read from input files!");
+		if (EndOfFile()) {
+			return -1;
+		}
+		if (bufferPos == bufferEnd) {
+			if (len >= buffer.length) {
+				// large reads go straight into the caller's array
+				int n = 0;
+				try {
+					n = file.read(b, off, len);
+				} catch (Exception e) {
+					System.out.println(e.getMessage());
+					System.exit(0);
+				}
+				position += n;
+				return n;
+			}
+			fillBuffer();
+		}
+		int n = Math.min(len, bufferEnd - bufferPos);
+		System.arraycopy(buffer, bufferPos, b, off, n);
+		bufferPos += n;
+		position += n;
+		return n;
+	}
+
+	private void fillBuffer() {
 		try {
-			Assert.notFalse(inputFile, "Can only read from input files!");
-			Assert.notFalse(!EndOfFile(), "Read past end of file!");
-			position++;
-			returnchar = (char) file.read();
+			int n = file.read(buffer, 0, buffer.length);
+			bufferPos = 0;
+			bufferEnd = Math.max(n, 0);
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			System.exit(0);
 		}
-
-		return returnchar;
 	}
 
 /**
@@ -81,21 +131,73 @@ public class TextFile {
  * @param c The character to write to the output file.
  */   
 	public void writeChar(char c) {
+		Assert.notFalse(!inputFile, "Can only write to output files!");
+		if (bufferPos == buffer.length) {
+			flushBuffer();
+		}
+		buffer[bufferPos++] = (byte) c;
+	}
+
+/**
+ * Write len bytes from b, starting at b[off], to an output file.
+ * This method is only valid for output files.
+ */
+	public void write(byte[] b, int off, int len) {
+		Assert.notFalse(!inputFile, "Can only write to output files!");
+		if (len > buffer.length - bufferPos) {
+			flushBuffer();
+			if (len >= buffer.length) {
+				// large writes go straight from the caller's array
+				try {
+					file.write(b, off, len);
+				} catch (Exception e) {
+					System.out.println(e.getMessage());
+					System.exit(0);
+				}
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, bufferPos, len);
+		bufferPos += len;
+	}
+
+/**
+ * Write len bytes from b, starting at b[off], at the given position of an
+ * output file, bypassing the buffer.  Several threads may write to
+ * different parts of the file at once.
+ */
+	public void writeAt(long position, byte[] b, int off, int len) {
+		Assert.notFalse(!inputFile, "Can only write to output files!");
 		try {
-			Assert.notFalse(!inputFile, "Can only write to output files!");
-			file.write((byte) c);
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				file.getChannel().write(src, position + src.position() - off);
+			}
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			System.exit(0);
 		}
 	}
 
+	private void flushBuffer() {
+		try {
+			file.write(buffer, 0, bufferPos);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		bufferPos = 0;
+	}
+
 /**
  * Close the file (works for input and output files).  Output files will
  * not be properly written to disk if this method is not called.
  */    
 	public void close() {
 		try {
+			if (!inputFile) {
+				flushBuffer();
+			}
 			file.close();
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
@@ -112,6 +214,8 @@ public class TextFile {
 			Assert.notFalse(inputFile, "Can only rewind input files!");
 			file.seek(0);
 			position = 0;
+			bufferPos = 0;
+			bufferEnd = 0;
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			System.exit(0);
@@ -121,5 +225,10 @@ public class TextFile {
     private boolean inputFile;
     private RandomAccessFile file;
     private long position;
-    private char buffer;
+    private long length;
+    private byte[] buffer;
+    private int bufferPos;
+    private int bufferEnd;
+
+    private static final int BUFFER_SIZE = 1 << 16;
 }
@@ -0,0 +1,170 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles on the codec classes. The codec lives in the default package,
+ * which code in a named package (as JMH requires) cannot import, so its
+ * classes are looked up by name once and called through method handles.
+ * Codec types show up as Object in the handle types; JDK types, primitives
+ * and arrays keep their own type. The handles are static final, so the JIT
+ * inlines through them as if the calls were direct.
+ */
+final class Codec {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	static final MethodHandle NEW_BINARY_FILE = constructor("BinaryFile", String.class, char.class);
+	static final MethodHandle BINARY_WRITE_BIT = method("BinaryFile", "writeBit", void.class, boolean.class);
+	static final MethodHandle BINARY_READ_BIT = method("BinaryFile", "readBit", boolean.class);
+	static final MethodHandle BINARY_CLOSE = method("BinaryFile", "close", void.class);
+
+	static final MethodHandle NEW_TEXT_FILE = constructor("TextFile", String.class, char.class);
+	static final MethodHandle TEXT_READ_CHAR = method("TextFile", "readChar", char.class);
+	static final MethodHandle TEXT_END_OF_FILE = method("TextFile", "EndOfFile", boolean.class);
+	static final MethodHandle TEXT_CLOSE = method("TextFile", "close", void.class);
+
+	static final MethodHandle NEW_BIT_WRITER = constructor("BitWriter", ByteBuffer.class);
+	static final MethodHandle WRITER_FLUSH = method("BitWriter", "flush", void.class);
+	static final MethodHandle NEW_BIT_READER = constructor("BitReader", ByteBuffer.class, long.class);
+
+	static final MethodHandle HISTOGRAM = staticMethod("Histogram", "count", long[].class,
+			byte[].class, int.class, int.class);
+	static final MethodHandle HISTOGRAM_STREAMS = staticMethod("Histogram", "count", long[][].class,
+			ByteBuffer.class, int.class);
+
+	static final MethodHandle NEW_COMPRESSION_TREE = constructor("HuffTree", long[].class);
+	static final MethodHandle NEW_DECOMPRESSION_TREE = constructor("HuffTree");
+	static final MethodHandle BUILD_COMPRESSION_TREE = method("HuffTree", "buildCompressionTree", void.class);
+	static final MethodHandle MAKE_CANONICAL = method("HuffTree", "makeCanonical", void.class);
+	static final MethodHandle CODE_LENGTHS = method("HuffTree", "getCodeLengths", int[].class);
+	static final MethodHandle ENCODE = method("HuffTree", "encode", void.class,
+			byte[].class, int.class, int.class, "BitWriter");
+	static final MethodHandle READ_CODE_LENGTHS = method("HuffTree", "readCodeLengths", void.class, "BitReader");
+	static final MethodHandle DECODE = method("HuffTree", "decode", void.class,
+			"BitReader", byte[].class, int.class, int.class);
+	static final MethodHandle DECODE_SINGLE = method("HuffTree", "decodeSingle", void.class,
+			"BitReader", byte[].class, int.class, int.class);
+	static final MethodHandle ENCODE_STREAM = method("HuffTree", "encode", void.class,
+			ByteBuffer.class, int.class, int.class, "BitWriter");
+	static final MethodHandle DECODE_STREAMS = method("HuffTree", "decode", void.class,
+			ByteBuffer[].class, byte[].class, int.class, int.class);
+
+	static final MethodHandle WRITE_CODE_LENGTHS = staticMethod("CanonicalCode", "write", void.class,
+			"BitWriter", int[].class);
+
+	// blocks as the default options code them, without timing
+	static final MethodHandle ENCODE_BLOCK = MethodHandles.insertArguments(
+			staticMethod("BlockCodec", "encode", "BlockCodec$Block", byte[].class, int.class, int.class,
+					int.class, boolean.class, "Stats"),
+			3, constant("CanonicalCode", "MAX_LENGTH"), false, constant("Stats", "NONE"));
+	static final MethodHandle DECODE_BLOCK = MethodHandles.filterArguments(MethodHandles.insertArguments(
+			staticMethod("BlockCodec", "decode", void.class, int.class, ByteBuffer.class, byte[].class,
+					int.class, int.class, "Stats"),
+			5, constant("Stats", "NONE")), 1, wrap());
+	static final MethodHandle BLOCK_TYPE = getter("BlockCodec$Block", "type", int.class);
+	static final MethodHandle BLOCK_PAYLOAD = getter("BlockCodec$Block", "payload", byte[].class);
+
+	private Codec() {
+	}
+
+	/**
+	 * @param types
+	 *            Classes, or names of codec classes
+	 */
+	private static MethodType type(Object returnType, Object... types) {
+		Class<?>[] classes = new Class<?>[types.length];
+		for (int i = 0; i < types.length; i++) {
+			classes[i] = codecClass(types[i]);
+		}
+		return MethodType.methodType(codecClass(returnType), classes);
+	}
+
+	private static MethodHandle constructor(String owner, Object... types) {
+		try {
+			return opaque(LOOKUP.findConstructor(codecClass(owner), type(void.class, types)));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle method(String owner, String name, Object returnType, Object... types) {
+		try {
+			return opaque(LOOKUP.findVirtual(codecClass(owner), name, type(returnType, types)));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle staticMethod(String owner, String name, Object returnType, Object... types) {
+		try {
+			return opaque(LOOKUP.findStatic(codecClass(owner), name, type(returnType, types)));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle getter(String owner, String name, Class<?> type) {
+		try {
+			return opaque(LOOKUP.findGetter(codecClass(owner), name, type));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * The value of a static field of a codec class
+	 */
+	private static Object constant(String owner, String name) {
+		try {
+			return codecClass(owner).getField(name).get(null);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * ByteBuffer.wrap(byte[]), to pass a payload array where a buffer is taken
+	 */
+	private static MethodHandle wrap() {
+		try {
+			return LOOKUP.findStatic(ByteBuffer.class, "wrap", MethodType.methodType(ByteBuffer.class, byte[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static Class<?> codecClass(Object type) {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		}
+		try {
+			return Class.forName((String) type);
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Replace the codec classes in the type of h with Object.
+	 */
+	private static MethodHandle opaque(MethodHandle h) {
+		MethodType type = h.type();
+		for (int i = 0; i < type.parameterCount(); i++) {
+			if (isCodecClass(type.parameterType(i))) {
+				type = type.changeParameterType(i, Object.class);
+			}
+		}
+		if (isCodecClass(type.returnType())) {
+			type = type.changeReturnType(Object.class);
+		}
+		return h.asType(type);
+	}
+
+	private static boolean isCodecClass(Class<?> c) {
+		return !c.isPrimitive() && !c.isArray() && c.getPackageName().isEmpty();
+	}
+}
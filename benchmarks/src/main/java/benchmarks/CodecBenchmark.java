@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole codec, one input per operation, as the compressor runs it on
+ * each block: counting, building the code, coding and decoding. Operations
+ * per second are MiB per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ Inputs.UNIFORM, Inputs.TEXT, Inputs.SKEWED, Inputs.SINGLE })
+	public String input;
+
+	private byte[] data;
+	private int type;
+	private byte[] payload;
+	private byte[] decoded;
+
+	@Setup
+	public void setUp() throws Throwable {
+		data = Inputs.generate(input);
+		Object block = (Object) Codec.ENCODE_BLOCK.invokeExact(data, 0, data.length);
+		type = (int) Codec.BLOCK_TYPE.invokeExact(block);
+		payload = (byte[]) Codec.BLOCK_PAYLOAD.invokeExact(block);
+		decoded = new byte[data.length];
+	}
+
+	@Benchmark
+	public Object compress() throws Throwable {
+		return (Object) Codec.ENCODE_BLOCK.invokeExact(data, 0, data.length);
+	}
+
+	@Benchmark
+	public byte[] decompress() throws Throwable {
+		Codec.DECODE_BLOCK.invokeExact(type, payload, decoded, 0, decoded.length);
+		return decoded;
+	}
+}
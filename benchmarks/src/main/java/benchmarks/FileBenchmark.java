@@ -0,0 +1,91 @@
+package benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Bit and character I/O of BinaryFile and TextFile. Every operation writes
+ * or reads the bits or characters of one whole input file, so operations
+ * per second are MiB per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+	@Param({ Inputs.UNIFORM, Inputs.TEXT, Inputs.SKEWED, Inputs.SINGLE })
+	public String input;
+
+	private byte[] data;
+	private File textFile;
+	private File bitFile;
+	private File scratchFile;
+
+	@Setup
+	public void setUp() throws Throwable {
+		data = Inputs.generate(input);
+		textFile = File.createTempFile("bench", ".txt");
+		Files.write(textFile.toPath(), data);
+		bitFile = File.createTempFile("bench", ".bin");
+		scratchFile = File.createTempFile("bench", ".bin");
+		writeBits(bitFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		textFile.delete();
+		bitFile.delete();
+		scratchFile.delete();
+	}
+
+	@Benchmark
+	public void binaryFileWriteBit() throws Throwable {
+		writeBits(scratchFile);
+	}
+
+	@Benchmark
+	public void binaryFileReadBit(Blackhole bh) throws Throwable {
+		Object file = (Object) Codec.NEW_BINARY_FILE.invokeExact(bitFile.getPath(), 'r');
+		for (int i = 0; i < 8 * data.length; i++) {
+			bh.consume((boolean) Codec.BINARY_READ_BIT.invokeExact(file));
+		}
+		Codec.BINARY_CLOSE.invokeExact(file);
+	}
+
+	@Benchmark
+	public void textFileReadChar(Blackhole bh) throws Throwable {
+		Object file = (Object) Codec.NEW_TEXT_FILE.invokeExact(textFile.getPath(), 'r');
+		while (!(boolean) Codec.TEXT_END_OF_FILE.invokeExact(file)) {
+			bh.consume((char) Codec.TEXT_READ_CHAR.invokeExact(file));
+		}
+		Codec.TEXT_CLOSE.invokeExact(file);
+	}
+
+	private void writeBits(File f) throws Throwable {
+		Object file = (Object) Codec.NEW_BINARY_FILE.invokeExact(f.getPath(), 'w');
+		for (byte b : data) {
+			for (int i = 7; i >= 0; i--) {
+				Codec.BINARY_WRITE_BIT.invokeExact(file, ((b >> i) & 1) != 0);
+			}
+		}
+		Codec.BINARY_CLOSE.invokeExact(file);
+	}
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the characters of one input per operation, so operations per
+ * second are MiB per second. histogram is Histogram.count, with its split
+ * tables and run check. singleTable is a plain loop over one long[256], and
+ * hashMap the HashMap<Character, Integer> loop Huffman.compress first used,
+ * both kept here for comparison.
+ *
+ * streams is Histogram.count for the four interleaved streams of a
+ * four-stream block, as BlockCodec.plan counts every block of the default
+ * size, and streamsPerByte the loop it replaced, one long[256] per stream
+ * and one ByteBuffer.get per byte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramBenchmark {
+
+	@Param({ Inputs.UNIFORM, Inputs.TEXT, Inputs.SKEWED, Inputs.SINGLE })
+	public String input;
+
+	private static final int STREAMS = 4;
+
+	private byte[] data;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setUp() {
+		data = Inputs.generate(input);
+		buffer = ByteBuffer.wrap(data);
+	}
+
+	@Benchmark
+	public long[] histogram() throws Throwable {
+		return (long[]) Codec.HISTOGRAM.invokeExact(data, 0, data.length);
+	}
+
+	@Benchmark
+	public long[] singleTable() {
+		long[] counts = new long[256];
+		for (int i = 0; i < data.length; i++) {
+			counts[data[i] & 0xFF]++;
+		}
+		return counts;
+	}
+
+	@Benchmark
+	public long[][] streams() throws Throwable {
+		return (long[][]) Codec.HISTOGRAM_STREAMS.invokeExact(buffer, STREAMS);
+	}
+
+	@Benchmark
+	public long[][] streamsPerByte() {
+		long[][] counts = new long[STREAMS][256];
+		int i = buffer.position();
+		for (; i + STREAMS <= buffer.limit(); i += STREAMS) {
+			for (int k = 0; k < STREAMS; k++) {
+				counts[k][buffer.get(i + k) & 0xFF]++;
+			}
+		}
+		for (int k = 0; i < buffer.limit(); i++, k++) {
+			counts[k][buffer.get(i) & 0xFF]++;
+		}
+		return counts;
+	}
+
+	@Benchmark
+	public Map<Character, Integer> hashMap() {
+		Map<Character, Integer> freq = new HashMap<Character, Integer>();
+		for (int i = 0; i < data.length; i++) {
+			Character c = Character.valueOf((char) (data[i] & 0xFF));
+			Integer currFreq = freq.get(c);
+			if (currFreq == null) {
+				currFreq = Integer.valueOf(1);
+			} else {
+				currFreq = Integer.valueOf(currFreq.intValue() + 1);
+			}
+			freq.put(c, currFreq);
+		}
+		return freq;
+	}
+}
@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the code and coding text with it, in memory. encode and decode
+ * code one whole input per operation, so operations per second are MiB per
+ * second. decodeText uses the multi-symbol table where it can, and
+ * decodeTextSingle decodes one symbol per lookup for comparison.
+ * decodeStreams decodes the input coded as four interleaved streams, as in
+ * the blocks of the block format. buildCompressionTree builds one tree per
+ * operation from the input's frequencies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HuffTreeBenchmark {
+
+	@Param({ Inputs.UNIFORM, Inputs.TEXT, Inputs.SKEWED, Inputs.SINGLE })
+	public String input;
+
+	private byte[] data;
+	private long[] freqs;
+	private Object tree;
+	private ByteBuffer scratch;
+	private ByteBuffer encoded;
+	private ByteBuffer[] streams;
+	private byte[] decoded;
+
+	@Setup
+	public void setUp() throws Throwable {
+		data = Inputs.generate(input);
+		freqs = (long[]) Codec.HISTOGRAM.invokeExact(data, 0, data.length);
+		tree = (Object) Codec.NEW_COMPRESSION_TREE.invokeExact(freqs);
+		Codec.BUILD_COMPRESSION_TREE.invokeExact(tree);
+		Codec.MAKE_CANONICAL.invokeExact(tree);
+
+		// room for the longest code on every character
+		scratch = ByteBuffer.allocate(8 * data.length + 1024);
+		encode(scratch);
+		encoded = ByteBuffer.wrap(Arrays.copyOf(scratch.array(), scratch.position()));
+		decoded = new byte[data.length];
+
+		streams = new ByteBuffer[4];
+		for (int k = 0; k < streams.length; k++) {
+			scratch.clear();
+			Object out = (Object) Codec.NEW_BIT_WRITER.invokeExact(scratch);
+			Codec.ENCODE_STREAM.invokeExact(tree, ByteBuffer.wrap(data), k, streams.length, out);
+			Codec.WRITER_FLUSH.invokeExact(out);
+			streams[k] = ByteBuffer.wrap(Arrays.copyOf(scratch.array(), scratch.position()));
+		}
+	}
+
+	@Benchmark
+	public Object buildCompressionTree() throws Throwable {
+		Object tree = (Object) Codec.NEW_COMPRESSION_TREE.invokeExact(freqs);
+		Codec.BUILD_COMPRESSION_TREE.invokeExact(tree);
+		Codec.MAKE_CANONICAL.invokeExact(tree);
+		return tree;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeText() throws Throwable {
+		scratch.clear();
+		encode(scratch);
+		return scratch;
+	}
+
+	@Benchmark
+	public byte[] decodeText() throws Throwable {
+		Object in = (Object) Codec.NEW_BIT_READER.invokeExact(encoded.duplicate(), 8L * encoded.limit());
+		Object tree = (Object) Codec.NEW_DECOMPRESSION_TREE.invokeExact();
+		Codec.READ_CODE_LENGTHS.invokeExact(tree, in);
+		Codec.DECODE.invokeExact(tree, in, decoded, 0, decoded.length);
+		return decoded;
+	}
+
+	@Benchmark
+	public byte[] decodeTextSingle() throws Throwable {
+		Object in = (Object) Codec.NEW_BIT_READER.invokeExact(encoded.duplicate(), 8L * encoded.limit());
+		Object tree = (Object) Codec.NEW_DECOMPRESSION_TREE.invokeExact();
+		Codec.READ_CODE_LENGTHS.invokeExact(tree, in);
+		Codec.DECODE_SINGLE.invokeExact(tree, in, decoded, 0, decoded.length);
+		return decoded;
+	}
+
+	@Benchmark
+	public byte[] decodeStreams() throws Throwable {
+		Object in = (Object) Codec.NEW_BIT_READER.invokeExact(encoded.duplicate(), 8L * encoded.limit());
+		Object tree = (Object) Codec.NEW_DECOMPRESSION_TREE.invokeExact();
+		Codec.READ_CODE_LENGTHS.invokeExact(tree, in);
+		Codec.DECODE_STREAMS.invokeExact(tree, streams, decoded, 0, decoded.length);
+		return decoded;
+	}
+
+	private void encode(ByteBuffer dest) throws Throwable {
+		Object out = (Object) Codec.NEW_BIT_WRITER.invokeExact(dest);
+		Codec.WRITE_CODE_LENGTHS.invokeExact(out, (int[]) Codec.CODE_LENGTHS.invokeExact(tree));
+		Codec.ENCODE.invokeExact(tree, data, 0, data.length, out);
+		Codec.WRITER_FLUSH.invokeExact(out);
+	}
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generated benchmark inputs. Every input is SIZE bytes, so a benchmark that
+ * processes one input per operation reports its throughput in MiB/s. The
+ * generators are seeded, so every run sees the same data.
+ */
+final class Inputs {
+
+	static final int SIZE = 1 << 20;
+
+	/** The kinds of input, for @Param */
+	static final String UNIFORM = "uniform";
+	static final String TEXT = "text";
+	static final String SKEWED = "skewed";
+	static final String SINGLE = "single";
+
+	private static final String[] WORDS = { "the", "of", "and", "to", "a", "in", "is", "it",
+			"that", "was", "for", "on", "are", "with", "as", "his", "they", "be", "at", "one",
+			"have", "this", "from", "or", "had", "by", "word", "but", "what", "some", "we",
+			"can", "out", "other", "were", "all", "there", "when", "up", "use", "your", "how",
+			"said", "an", "each", "she", "which", "do", "their", "time", "if", "will", "way",
+			"about", "many", "then", "them", "would", "write", "like", "so", "these", "her",
+			"long", "make", "thing", "see", "him", "two", "has", "look", "more", "day",
+			"could", "go", "come", "did", "number", "sound", "no", "most", "people", "my",
+			"over", "know", "water", "than", "call", "first", "who", "may", "down", "side",
+			"been", "now", "find", "compression", "Huffman", "frequency", "character" };
+
+	private Inputs() {
+	}
+
+	static byte[] generate(String kind) {
+		Random random = new Random(42);
+		byte[] b = new byte[SIZE];
+		if (kind.equals(UNIFORM)) {
+			random.nextBytes(b);
+		} else if (kind.equals(TEXT)) {
+			text(random, b);
+		} else if (kind.equals(SKEWED)) {
+			// geometric: each value is half as likely as the one before it
+			for (int i = 0; i < b.length; i++) {
+				b[i] = (byte) Math.min(255, Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE));
+			}
+		} else if (kind.equals(SINGLE)) {
+			Arrays.fill(b, (byte) 'a');
+		} else {
+			throw new IllegalArgumentException("Unknown input " + kind);
+		}
+		return b;
+	}
+
+	/**
+	 * Words drawn with a roughly Zipfian distribution, in sentences and lines.
+	 */
+	private static void text(Random random, byte[] b) {
+		int pos = 0;
+		int lineLength = 0;
+		boolean sentenceStart = true;
+		while (pos < b.length) {
+			// the square of a uniform index favours the first, most common words
+			double u = random.nextDouble();
+			String word = WORDS[(int) (u * u * WORDS.length)];
+			for (int i = 0; i < word.length() && pos < b.length; i++) {
+				char c = word.charAt(i);
+				b[pos++] = (byte) (sentenceStart && i == 0 ? Character.toUpperCase(c) : c);
+			}
+			lineLength += word.length() + 1;
+			sentenceStart = random.nextInt(12) == 0;
+			if (sentenceStart && pos < b.length) {
+				b[pos++] = (byte) '.';
+			}
+			if (pos < b.length) {
+				b[pos++] = (byte) (lineLength > 72 ? '\n' : ' ');
+				if (lineLength > 72) {
+					lineLength = 0;
+				}
+			}
+		}
+	}
+}
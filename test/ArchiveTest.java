@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Archives: creating, listing and extracting them, and refusing member names
+ * and indexes that cannot be trusted.
+ */
+public class ArchiveTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * Every member of an archive is listed with its name and size, and comes
+	 * back as it went in, both on its own and with all the others.
+	 */
+	@Test
+	public void createListExtractRoundTrips() throws Exception {
+		Path source = source();
+		Path archive = dir.resolve("records.har");
+		Archive.create(source.toString(), archive.toString(), false, null, CanonicalCode.MAX_LENGTH);
+
+		ArrayList<String> names = new ArrayList<String>();
+		for (Archive.Member member : Archive.read(archive.toString()).getMembers()) {
+			names.add(member.name);
+			assertEquals(Files.size(source.resolve(member.name)), member.size, member.name);
+		}
+		names.sort(null);
+		assertEquals(Arrays.asList("empty.txt", "r0.json", "r1.json", "r2.json", "sub/r3.json"), names);
+
+		Archive read = Archive.read(archive.toString());
+		Path one = dir.resolve("one.json");
+		read.extract(archive.toString(), read.find("sub/r3.json"), one.toString());
+		assertArrayEquals(Files.readAllBytes(source.resolve("sub/r3.json")), Files.readAllBytes(one));
+
+		Path out = dir.resolve("out");
+		read.extractAll(archive.toString(), out.toString());
+		for (String name : names) {
+			assertArrayEquals(Files.readAllBytes(source.resolve(name)), Files.readAllBytes(out.resolve(name)), name);
+		}
+	}
+
+	/**
+	 * Members sharing one trained table round-trip too.
+	 */
+	@Test
+	public void sharedTableRoundTrips() throws Exception {
+		Path source = source();
+		Path archive = dir.resolve("shared.har");
+		Archive.create(source.toString(), archive.toString(), true, null, CanonicalCode.MAX_LENGTH);
+
+		Archive read = Archive.read(archive.toString());
+		Path out = dir.resolve("out");
+		read.extractAll(archive.toString(), out.toString());
+		for (Archive.Member member : read.getMembers()) {
+			assertEquals(0, member.table, member.name);
+			assertArrayEquals(Files.readAllBytes(source.resolve(member.name)),
+					Files.readAllBytes(out.resolve(member.name)), member.name);
+		}
+	}
+
+	/**
+	 * A member whose name climbs out of the output directory is not
+	 * extracted.
+	 */
+	@Test
+	public void memberNameOutsideOutputIsRejected() throws Exception {
+		Path archive = dir.resolve("records.har");
+		Archive.create(source().toString(), archive.toString(), false, null, CanonicalCode.MAX_LENGTH);
+
+		Archive read = Archive.read(archive.toString());
+		read.getMembers().get(0).name = "../escaped.json";
+		Path out = dir.resolve("out");
+		assertThrows(IllegalArgumentException.class, () -> read.extractAll(archive.toString(), out.toString()));
+		assertFalse(Files.exists(dir.resolve("escaped.json")), "a member was written outside the output");
+	}
+
+	/**
+	 * An archive whose index offset points past the index, or whose index
+	 * was cut short, is refused.
+	 */
+	@Test
+	public void damagedIndexIsRejected() throws Exception {
+		Path archive = dir.resolve("records.har");
+		Archive.create(source().toString(), archive.toString(), false, null, CanonicalCode.MAX_LENGTH);
+		byte[] bytes = Files.readAllBytes(archive);
+		int trailer = bytes.length - Archive.TRAILER_SIZE;
+
+		Path badOffset = dir.resolve("offset.har");
+		byte[] damaged = bytes.clone();
+		damaged[trailer] = 0x7F;
+		Files.write(badOffset, damaged);
+		assertThrows(RuntimeException.class, () -> Archive.read(badOffset.toString()));
+
+		// the last 16 bytes of the index go, and the trailer stays
+		Path cut = dir.resolve("cut.har");
+		damaged = Arrays.copyOf(bytes, trailer - 16 + Archive.TRAILER_SIZE);
+		System.arraycopy(bytes, trailer, damaged, trailer - 16, Archive.TRAILER_SIZE);
+		Files.write(cut, damaged);
+		assertThrows(RuntimeException.class, () -> Archive.read(cut.toString()));
+	}
+
+	/**
+	 * A small directory of JSON records, one in a subdirectory, and an empty
+	 * file.
+	 */
+	private Path source() throws Exception {
+		Path source = dir.resolve("records");
+		Files.createDirectories(source.resolve("sub"));
+		for (int i = 0; i < 4; i++) {
+			StringBuilder record = new StringBuilder("{\"id\": " + i + ", \"items\": [");
+			for (int j = 0; j < 50 * (i + 1); j++) {
+				record.append(j > 0 ? ", " : "").append("{\"name\": \"item").append(j).append("\", \"count\": ")
+						.append(j * i % 17).append("}");
+			}
+			record.append("]}\n");
+			Path file = source.resolve(i == 3 ? "sub/r3.json" : "r" + i + ".json");
+			Files.write(file, record.toString().getBytes(StandardCharsets.US_ASCII));
+		}
+		Files.write(source.resolve("empty.txt"), new byte[0]);
+		return source;
+	}
+}
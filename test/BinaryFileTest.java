@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The bit count header, which holds counts of 2^31 bits and more as a 64-bit
+ * number after BinaryFile.LENGTH_64
+ */
+public class BinaryFileTest {
+
+	/** More bits than a signed 32-bit count holds */
+	private static final long BIG = (1L << 32) + 13;
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * Counting more than 2^31 bits, streamed through a writer that keeps
+	 * none of them.
+	 */
+	@Test
+	public void writerCountsPast2To31Bits() {
+		BitWriter out = new BitWriter(OutputStream.nullOutputStream());
+		long bits = 0;
+		while (bits + BitReader.MAX_BITS <= BIG) {
+			out.writeBits(0x5A5A5A5A5A5AL, BitReader.MAX_BITS);
+			bits += BitReader.MAX_BITS;
+		}
+		out.writeBits(0, (int) (BIG - bits));
+		assertEquals(BIG, out.getBitCount());
+	}
+
+	/**
+	 * Reading more than 2^31 bits, streamed from generated input, up to a
+	 * marker in the last byte.
+	 */
+	@Test
+	public void readerCountsPast2To31Bits() {
+		final long bytes = (BIG + 7) / 8;
+		InputStream zeros = new InputStream() {
+			long left = bytes;
+
+			@Override
+			public int read() {
+				return left-- > 0 ? (left == 0 ? 0xFF : 0) : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (left == 0) {
+					return -1;
+				}
+				int n = (int) Math.min(len, left);
+				Arrays.fill(b, off, off + n, (byte) 0);
+				left -= n;
+				if (left == 0) {
+					b[off + n - 1] = (byte) 0xFF;
+				}
+				return n;
+			}
+		};
+		BitReader in = new BitReader(zeros, 8 * bytes);
+		while (in.getBitsRead() + BitReader.MAX_BITS <= 8 * bytes - 8) {
+			assertEquals(0, in.readBits(BitReader.MAX_BITS));
+		}
+		in.readBits((int) (8 * bytes - 8 - in.getBitsRead()));
+		assertEquals(0xFF, in.readBits(8));
+		assertEquals(8 * bytes, in.getBitsRead());
+	}
+
+	/**
+	 * The count a BinaryFile writes is the 64-bit number after LENGTH_64.
+	 */
+	@Test
+	public void closeWritesSixtyFourBitCount() throws Exception {
+		String name = dir.resolve("bits").toString();
+		BinaryFile file = new BinaryFile(name, 'w');
+		file.writeChar('H');
+		file.writeBits(5, 3);
+		file.close();
+
+		RandomAccessFile raw = new RandomAccessFile(name, "r");
+		assertEquals(BinaryFile.LENGTH_64, raw.readInt());
+		assertEquals(11, raw.readLong());
+		raw.close();
+	}
+
+	/**
+	 * A header with a count past 2^32 is read back whole.
+	 */
+	@Test
+	public void readsSixtyFourBitCount() throws Exception {
+		String name = dir.resolve("big").toString();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(name));
+		out.writeInt(BinaryFile.LENGTH_64);
+		out.writeLong(BIG);
+		out.writeByte(Integer.reverse('H') >>> 24);
+		out.close();
+
+		BinaryFile file = new BinaryFile(name, 'r');
+		assertEquals(BIG, file.getReader().getTotalBits());
+		assertEquals('H', file.readChar());
+		// only the bits that are in the file are left, whatever the header says
+		assertEquals(0, file.bitsLeft());
+		file.close();
+	}
+
+	/**
+	 * Files from before LENGTH_64 hold an unsigned 32-bit count, so counts
+	 * from 2^31 to 2^32 - 1 bits are still read as positive.
+	 */
+	@Test
+	public void readsUnsignedThirtyTwoBitCount() throws Exception {
+		String name = dir.resolve("old").toString();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(name));
+		out.writeInt(0x80000010);
+		out.writeByte(Integer.reverse('F') >>> 24);
+		out.close();
+
+		BinaryFile file = new BinaryFile(name, 'r');
+		assertEquals((1L << 31) + 16, file.getReader().getTotalBits());
+		assertEquals('F', file.readChar());
+		file.close();
+	}
+}
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Files compressed with a pre-trained code table
+ */
+public class CodeTableTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * A small record compressed with a table trained on records like it is
+	 * smaller than the record, without -f, and decompresses to the record.
+	 */
+	@Test
+	public void smallRecordGetsSmaller() throws Exception {
+		File corpus = dir.resolve("corpus").toFile();
+		corpus.mkdir();
+		for (int i = 0; i < 300; i++) {
+			String record = "{\"id\":" + i + ",\"user\":\"u" + (i * 7) + "\",\"ok\":true}\n";
+			Files.write(new File(corpus, "r" + i + ".json").toPath(), record.getBytes(StandardCharsets.UTF_8));
+		}
+		String table = dir.resolve("records.ht").toString();
+		Huffman.main(new String[] { "-t", corpus.getPath(), table });
+
+		byte[] record = "{\"id\":1234,\"user\":\"u8638\",\"ok\":true}\n".getBytes(StandardCharsets.UTF_8);
+		Path input = dir.resolve("record.json");
+		Files.write(input, record);
+		Path compressed = dir.resolve("record.huff");
+		Huffman.main(new String[] { "-c", "-T", table, input.toString(), compressed.toString() });
+		assertTrue(Files.exists(compressed), "record was not compressed");
+		assertTrue(Files.size(compressed) < record.length,
+				"record of " + record.length + " bytes compressed to " + Files.size(compressed));
+
+		Path output = dir.resolve("record.out");
+		Huffman.main(new String[] { "-u", "-T", table, compressed.toString(), output.toString() });
+		assertArrayEquals(record, Files.readAllBytes(output));
+	}
+
+	/**
+	 * A file with no text holds the header and the padding count only.
+	 */
+	@Test
+	public void emptyFileRoundTrips() throws Exception {
+		Path corpus = dir.resolve("corpus.txt");
+		Files.write(corpus, "some text to train on".getBytes(StandardCharsets.UTF_8));
+		String table = dir.resolve("text.ht").toString();
+		Huffman.main(new String[] { "-t", corpus.toString(), table });
+
+		Path input = dir.resolve("empty.txt");
+		Files.write(input, new byte[0]);
+		Path compressed = dir.resolve("empty.huff");
+		Huffman.main(new String[] { "-c", "-f", "-T", table, input.toString(), compressed.toString() });
+		Path output = dir.resolve("empty.out");
+		Huffman.main(new String[] { "-u", "-T", table, compressed.toString(), output.toString() });
+		assertArrayEquals(new byte[0], Files.readAllBytes(output));
+	}
+}
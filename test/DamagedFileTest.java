@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Compressed files that were cut short or damaged fail to decompress, with a
+ * nonzero exit status and no output, instead of decoding to made-up text.
+ */
+public class DamagedFileTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * A file in the single-tree format, cut off after 5000 bytes.
+	 */
+	@Test
+	public void truncatedSingleTreeFileFails() throws Exception {
+		Path compressed = compress("-b", "0");
+		Path truncated = dir.resolve("truncated.huff");
+		Files.write(truncated, Arrays.copyOf(Files.readAllBytes(compressed), 5000));
+
+		Path output = dir.resolve("truncated.out");
+		assertNotEquals(0, huffman("-u", truncated.toString(), output.toString()),
+				"a truncated file decompressed");
+		assertFalse(Files.exists(output), "a truncated file left an output");
+	}
+
+	/**
+	 * A file in the block format, cut off in its first block header, read
+	 * both through the bit reader and through a mapping.
+	 */
+	@Test
+	public void truncatedBlockFileFails() throws Exception {
+		Path compressed = compress();
+		Path truncated = dir.resolve("truncated.huff");
+		Files.write(truncated, Arrays.copyOf(Files.readAllBytes(compressed), 40));
+
+		Path output = dir.resolve("truncated.out");
+		assertNotEquals(0, huffman("-u", truncated.toString(), output.toString()),
+				"a truncated file decompressed");
+		assertFalse(Files.exists(output), "a truncated file left an output");
+		assertNotEquals(0, huffman("-u", "-m", truncated.toString(), output.toString()),
+				"a truncated file decompressed through a mapping");
+		assertFalse(Files.exists(output), "a truncated file left an output");
+	}
+
+	/**
+	 * A file in the block format whose first block claims far more
+	 * characters than a block holds, read both through the bit reader and
+	 * through a mapping.
+	 */
+	@Test
+	public void damagedBlockLengthFails() throws Exception {
+		Path compressed = compress();
+		byte[] bytes = Files.readAllBytes(compressed);
+		// the bit count, the format and the block size come first; then the
+		// block type and the high byte of its character count
+		bytes[BinaryFile.HEADER_SIZE + BlockCodec.FILE_HEADER_SIZE + 1] ^= 0x7F;
+		Path damaged = dir.resolve("damaged.huff");
+		Files.write(damaged, bytes);
+
+		Path output = dir.resolve("damaged.out");
+		assertNotEquals(0, huffman("-u", damaged.toString(), output.toString()),
+				"a damaged file decompressed");
+		assertFalse(Files.exists(output), "a damaged file left an output");
+		assertNotEquals(0, huffman("-u", "-m", damaged.toString(), output.toString()),
+				"a damaged file decompressed through a mapping");
+		assertFalse(Files.exists(output), "a damaged file left an output");
+	}
+
+	/**
+	 * A batch with a truncated file in it codes the other files, but exits
+	 * with a nonzero status.
+	 */
+	@Test
+	public void batchWithTruncatedFileFails() throws Exception {
+		Path compressed = compress();
+		Path batch = dir.resolve("batch");
+		Files.createDirectory(batch);
+		Files.copy(compressed, batch.resolve("whole.huff"));
+		Files.write(batch.resolve("truncated.huff"), Arrays.copyOf(Files.readAllBytes(compressed), 40));
+
+		Path out = dir.resolve("out");
+		assertNotEquals(0, huffman("-u", "-B", batch.toString(), out.toString()),
+				"a batch with a truncated file succeeded");
+		assertTrue(Files.exists(out.resolve("whole")), "the whole file was not decompressed");
+		assertFalse(Files.exists(out.resolve("truncated")), "a truncated file left an output");
+	}
+
+	/**
+	 * Compress 300 KB of generated text with the given options.
+	 */
+	private Path compress(String... options) throws Exception {
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(42);
+		String[] words = { "the", "of", "and", "huffman", "code", "tree", "block", "bits", "stream", "table" };
+		while (text.length() < 300000) {
+			text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? ".\n" : " ");
+		}
+		Path input = dir.resolve("text.txt");
+		Files.write(input, text.toString().getBytes(StandardCharsets.US_ASCII));
+		Path compressed = dir.resolve("text.huff");
+		ArrayList<String> args = new ArrayList<String>();
+		args.add("-c");
+		args.addAll(Arrays.asList(options));
+		args.add(input.toString());
+		args.add(compressed.toString());
+		Huffman.main(args.toArray(new String[0]));
+		return compressed;
+	}
+
+	/**
+	 * Run Huffman in a JVM of its own, as a failure ends the JVM it runs in.
+	 *
+	 * @return The exit status
+	 */
+	private static int huffman(String... args) throws Exception {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("Huffman");
+		command.addAll(Arrays.asList(args));
+		return new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+	}
+}